@@ -0,0 +1,184 @@
+package lidar;
+
+/**
+ * Per-beam model of the static background seen by a stationary LMS111.
+ *
+ * Every beam keeps an exponentially weighted mean and variance of its range,
+ * and optionally of its remission.  A beam is foreground when its range is
+ * clearly shorter than the background, i.e. something stands in front of
+ * it, or when its remission differs clearly at the background's range.
+ * Background beams are learnt at the normal rate; foreground beams much more
+ * slowly, so a person walking through is not absorbed but a parked object
+ * eventually becomes background.
+ *
+ * All state lives in arrays sized to the beam count, so memory use does not
+ * grow with running time.
+ */
+public class BackgroundModel {
+	private final int beams;
+	private final float alpha;
+	private final float foregroundAlpha;
+	private final float threshold;
+	private final float minDelta;
+	private final int warmup;
+	private final boolean useRssi;
+
+	private final float[] mean;
+	private final float[] var;
+	private final float[] rssiMean;
+	private final float[] rssiVar;
+	private final int[] samples;
+	private final boolean[] foreground;
+	private int foregroundCount;
+	private long scans;
+
+	/**
+	 * Creates a model.
+	 *
+	 * @param beams number of beams per scan
+	 * @param alpha learning rate for background beams, (0, 1]
+	 * @param foregroundAlpha learning rate for foreground beams, [0, alpha]
+	 * @param threshold deviation in standard deviations that marks a change
+	 * @param minDelta smallest range change in mm that marks a change
+	 * @param warmup scans a beam must have seen before it can be foreground
+	 * @param useRssi true to also detect changes in remission
+	 */
+	public BackgroundModel(int beams, float alpha, float foregroundAlpha, float threshold,
+			float minDelta, int warmup, boolean useRssi) {
+		if(alpha <= 0 || alpha > 1 || foregroundAlpha < 0 || foregroundAlpha > alpha)
+			throw new IllegalArgumentException("invalid learning rate");
+		this.beams = beams;
+		this.alpha = alpha;
+		this.foregroundAlpha = foregroundAlpha;
+		this.threshold = threshold;
+		this.minDelta = minDelta;
+		this.warmup = warmup;
+		this.useRssi = useRssi;
+
+		mean = new float[beams];
+		var = new float[beams];
+		rssiMean = useRssi ? new float[beams] : null;
+		rssiVar = useRssi ? new float[beams] : null;
+		samples = new int[beams];
+		foreground = new boolean[beams];
+	}
+
+	/**
+	 * Classifies the beams of a scan and learns from it.
+	 *
+	 * @param scan the scan, with at most as many beams as the model
+	 * @return number of foreground beams
+	 */
+	public int update(ScanData scan) {
+		final int[] dist = scan.getDIST1();
+		final int[] rssi = useRssi && scan.getRSSI1() != null && scan.getRSSI1().length >= dist.length
+				? scan.getRSSI1() : null;
+		final int n = Math.min(beams, dist.length);
+		final float t2 = threshold * threshold;
+		int count = 0;
+
+		for(int i = 0; i < n; i++) {
+			final int d = dist[i];
+			if(d <= 0) {
+				/* no echo tells nothing about the background */
+				foreground[i] = false;
+				continue;
+			}
+
+			if(samples[i] == 0) {
+				mean[i] = d;
+				var[i] = minDelta * minDelta;
+				if(rssi != null) {
+					rssiMean[i] = rssi[i];
+					rssiVar[i] = 1;
+				}
+				samples[i] = 1;
+				foreground[i] = false;
+				continue;
+			}
+
+			final float delta = d - mean[i];
+			boolean changed = false;
+			if(samples[i] >= warmup) {
+				/* closer than the background by more than the noise */
+				changed = delta < -minDelta && delta * delta > t2 * var[i];
+				if(!changed && rssi != null && delta * delta <= t2 * var[i]) {
+					final float r = rssi[i] - rssiMean[i];
+					changed = r * r > t2 * Math.max(rssiVar[i], 1f);
+				}
+			} else {
+				samples[i]++;
+			}
+			foreground[i] = changed;
+			if(changed) count++;
+
+			/* exponentially weighted mean and variance */
+			final float a = changed ? foregroundAlpha : alpha;
+			mean[i] += a * delta;
+			var[i] = (1 - a) * (var[i] + a * delta * delta);
+			if(rssi != null) {
+				final float r = rssi[i] - rssiMean[i];
+				rssiMean[i] += a * r;
+				rssiVar[i] = (1 - a) * (rssiVar[i] + a * r * r);
+			}
+		}
+		for(int i = n; i < beams; i++) foreground[i] = false;
+
+		foregroundCount = count;
+		scans++;
+		return count;
+	}
+
+	/**
+	 * Returns the classification of the last scan.  The array is reused.
+	 * @return true for foreground beams
+	 */
+	public boolean[] getForeground() {
+		return foreground;
+	}
+
+	/** @return number of foreground beams in the last scan */
+	public int getForegroundCount() {
+		return foregroundCount;
+	}
+
+	/**
+	 * Returns the learnt background ranges.  The array is live.
+	 * @return mean range of each beam in mm, 0 if never seen
+	 */
+	public float[] getBackground() {
+		return mean;
+	}
+
+	/**
+	 * Returns the standard deviation of a beam's background range.
+	 * @param beam beam index
+	 * @return standard deviation in mm
+	 */
+	public double getDeviation(int beam) {
+		return Math.sqrt(var[beam]);
+	}
+
+	/** @return true once every beam that has seen echoes is out of warm-up */
+	public boolean isLearnt() {
+		for(int i = 0; i < beams; i++)
+			if(samples[i] > 0 && samples[i] < warmup) return false;
+		return scans > 0;
+	}
+
+	public long getScanCount() {
+		return scans;
+	}
+
+	public int getBeamCount() {
+		return beams;
+	}
+
+	/** Forgets everything learnt. */
+	public void reset() {
+		java.util.Arrays.fill(samples, 0);
+		java.util.Arrays.fill(foreground, false);
+		foregroundCount = 0;
+		scans = 0;
+	}
+}
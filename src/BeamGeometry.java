@@ -0,0 +1,139 @@
+package lidar;
+
+/**
+ * Precomputed beam directions for one scan layout of the LMS111.
+ *
+ * The LMS111 reports angles in 1/10,000 degrees with 90 degrees pointing
+ * straight ahead.  This class converts them once into the sensor frame used
+ * throughout this package: x points forward, y points to the left, and angles
+ * are in radians with 0 straight ahead and positive counter-clockwise.  The
+ * cosine/sine tables let callers project ranges into points without calling
+ * any trigonometric function per beam.
+ */
+public class BeamGeometry {
+	/** Angle of the first beam with the factory output range, 1/10,000 deg */
+	public static final int DEFAULT_START_ANGLE = -450000;
+	/** Angle covered by a full scan in 1/10,000 degrees */
+	public static final int FULL_FIELD = 2700000;
+	/** Device angle that points straight ahead in 1/10,000 degrees */
+	public static final int FORWARD_ANGLE = 900000;
+
+	private final int startAngle;
+	private final int angleStep;
+	private final int count;
+	private final float[] cos;
+	private final float[] sin;
+
+	/**
+	 * Builds the tables for a given layout.
+	 *
+	 * @param startAngle angle of the first beam in 1/10,000 degrees
+	 * @param angleStep angle between beams in 1/10,000 degrees
+	 * @param count number of beams
+	 */
+	public BeamGeometry(int startAngle, int angleStep, int count) {
+		if(angleStep <= 0 || count < 0)
+			throw new IllegalArgumentException();
+		this.startAngle = startAngle;
+		this.angleStep = angleStep;
+		this.count = count;
+		this.cos = new float[count];
+		this.sin = new float[count];
+
+		for(int i = 0; i < count; i++) {
+			double a = angle(i);
+			cos[i] = (float) Math.cos(a);
+			sin[i] = (float) Math.sin(a);
+		}
+	}
+
+	/**
+	 * Builds the tables matching the layout of a scan.
+	 * @param scan scan whose layout should be described
+	 * @return geometry for that scan
+	 */
+	public static BeamGeometry of(ScanData scan) {
+		return new BeamGeometry(scan.getStartAngle(), scan.getAngleStepWidth(),
+				scan.getDIST1().length);
+	}
+
+	/**
+	 * Checks whether this geometry describes the layout of the given scan, so
+	 * callers can keep one instance and only rebuild it when the layout changes.
+	 * @param scan scan to compare against
+	 * @return true if start angle, step and beam count all match
+	 */
+	public boolean matches(ScanData scan) {
+		return scan.getStartAngle() == startAngle
+				&& scan.getAngleStepWidth() == angleStep
+				&& scan.getDIST1().length == count;
+	}
+
+	public int getStartAngle() {
+		return startAngle;
+	}
+
+	public int getAngleStep() {
+		return angleStep;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the direction of a beam in the sensor frame.
+	 * @param beam beam index
+	 * @return angle in radians, 0 straight ahead
+	 */
+	public double angle(int beam) {
+		return Math.toRadians((startAngle + (double) beam * angleStep
+				- FORWARD_ANGLE) / 10000.0);
+	}
+
+	/**
+	 * Returns the index of the beam closest to a direction.
+	 * @param radians angle in the sensor frame
+	 * @return beam index, or -1 if the direction is outside the scan
+	 */
+	public int beamAt(double radians) {
+		double device = Math.toDegrees(radians) * 10000.0 + FORWARD_ANGLE;
+		int beam = (int) Math.round((device - startAngle) / angleStep);
+		if(beam < 0 || beam >= count) {
+			/* retry one turn around, angles may be given in (-180, 180] */
+			device += device < startAngle ? 3600000 : -3600000;
+			beam = (int) Math.round((device - startAngle) / angleStep);
+			if(beam < 0 || beam >= count) return -1;
+		}
+		return beam;
+	}
+
+	public float cos(int beam) {
+		return cos[beam];
+	}
+
+	public float sin(int beam) {
+		return sin[beam];
+	}
+
+	/**
+	 * Projects ranges into sensor frame points.  Beams with a range of 0
+	 * (no echo) are skipped.
+	 *
+	 * @param dist ranges in mm, one per beam
+	 * @param x receives x coordinates in mm
+	 * @param y receives y coordinates in mm
+	 * @return number of points written
+	 */
+	public int toPoints(int[] dist, float[] x, float[] y) {
+		int n = 0;
+		int beams = Math.min(count, dist.length);
+		for(int i = 0; i < beams; i++) {
+			if(dist[i] <= 0) continue;
+			x[n] = dist[i] * cos[i];
+			y[n] = dist[i] * sin[i];
+			n++;
+		}
+		return n;
+	}
+}
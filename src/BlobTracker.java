@@ -0,0 +1,218 @@
+package lidar;
+
+/**
+ * Groups the foreground beams of a {@link BackgroundModel} into blobs and
+ * follows them from scan to scan.
+ *
+ * Blobs are the clusters a {@link ScanSegmenter} finds among the foreground
+ * beams.  Blobs and tracks within a gate of each other are paired and
+ * assigned nearest first, like in {@link MultiTargetTracker}, so the result
+ * does not depend on the order of the blobs.  New tracks are opened for
+ * unmatched blobs and tracks that go unmatched for too many scans are
+ * dropped.  Blobs and tracks are kept in fixed size arrays, so memory use is
+ * constant; blobs beyond the capacity are ignored.
+ *
+ * Positions are in the sensor frame in mm, x forward and y left.
+ */
+public class BlobTracker {
+	/* breakpoint growth, see ScanSegmenter; tolerates one dropped beam */
+	private static final float GAP_FACTOR = 2;
+
+	private final int maxTracks;
+	private final float gate;
+	private final float smoothing;
+	private final float velocitySmoothing;
+	private final int maxMissed;
+
+	/* blobs of the last scan */
+	private final ScanSegmenter segmenter;
+	private final int[] blobTrack;
+	private int blobs;
+	private final GatedPairs pairs = new GatedPairs();
+
+	/* tracks */
+	private final int[] trackId;
+	private final float[] trackX;
+	private final float[] trackY;
+	private final float[] trackVX;
+	private final float[] trackVY;
+	private final int[] trackAge;
+	private final int[] trackMissed;
+	private final boolean[] trackMatched;
+	private int nextId = 1;
+
+	/**
+	 * Creates a tracker.
+	 *
+	 * @param maxBlobs most blobs kept per scan
+	 * @param maxTracks most tracks followed at once
+	 * @param minBeams smallest number of beams forming a blob
+	 * @param maxGap largest distance in mm between neighbouring points of a
+	 * 			blob at short range; grows with the beam spacing at longer range
+	 * @param gate largest distance in mm between a track and its blob
+	 * @param smoothing weight of the measured position, (0, 1]; velocity is
+	 * 			corrected with its square
+	 * @param maxMissed scans a track survives without a blob
+	 */
+	public BlobTracker(int maxBlobs, int maxTracks, int minBeams, float maxGap, float gate,
+			float smoothing, int maxMissed) {
+		if(smoothing <= 0 || smoothing > 1) throw new IllegalArgumentException();
+		this.maxTracks = maxTracks;
+		this.gate = gate;
+		this.smoothing = smoothing;
+		this.velocitySmoothing = smoothing * smoothing;
+		this.maxMissed = maxMissed;
+
+		segmenter = new ScanSegmenter(maxBlobs, maxGap, GAP_FACTOR, minBeams, Float.POSITIVE_INFINITY);
+		blobTrack = new int[maxBlobs];
+
+		trackId = new int[maxTracks];
+		trackX = new float[maxTracks];
+		trackY = new float[maxTracks];
+		trackVX = new float[maxTracks];
+		trackVY = new float[maxTracks];
+		trackAge = new int[maxTracks];
+		trackMissed = new int[maxTracks];
+		trackMatched = new boolean[maxTracks];
+	}
+
+	/**
+	 * Finds the blobs of a scan and updates the tracks.
+	 *
+	 * @param scan the scan
+	 * @param foreground per beam classification, see
+	 * 			{@link BackgroundModel#getForeground()}
+	 * @return number of blobs found
+	 */
+	public int update(ScanData scan, boolean[] foreground) {
+		blobs = segmenter.segment(scan, foreground);
+		associate(segmenter.getX(), segmenter.getY());
+		return blobs;
+	}
+
+	private void associate(float[] bx, float[] by) {
+		for(int t = 0; t < maxTracks; t++) {
+			trackMatched[t] = false;
+			if(trackId[t] == 0) continue;
+			/* predict */
+			trackX[t] += trackVX[t];
+			trackY[t] += trackVY[t];
+		}
+
+		final float gate2 = gate * gate;
+		pairs.clear();
+		for(int b = 0; b < blobs; b++) {
+			blobTrack[b] = 0;
+			for(int t = 0; t < maxTracks; t++) {
+				if(trackId[t] == 0) continue;
+				float dx = bx[b] - trackX[t], dy = by[b] - trackY[t];
+				float d = dx * dx + dy * dy;
+				if(d <= gate2) pairs.add(b, t, d);
+			}
+		}
+
+		/* assign nearest first */
+		pairs.sort();
+		for(int k = 0; k < pairs.size(); k++) {
+			final int b = pairs.measurement(k), t = pairs.track(k);
+			if(blobTrack[b] != 0 || trackMatched[t]) continue;
+			float dx = bx[b] - trackX[t], dy = by[b] - trackY[t];
+			trackX[t] += smoothing * dx;
+			trackY[t] += smoothing * dy;
+			trackVX[t] += velocitySmoothing * dx;
+			trackVY[t] += velocitySmoothing * dy;
+			trackAge[t]++;
+			trackMissed[t] = 0;
+			trackMatched[t] = true;
+			blobTrack[b] = trackId[t];
+		}
+
+		/* births */
+		for(int b = 0; b < blobs; b++)
+			if(blobTrack[b] == 0) blobTrack[b] = open(bx[b], by[b]);
+
+		for(int t = 0; t < maxTracks; t++) {
+			if(trackId[t] == 0 || trackMatched[t]) continue;
+			if(++trackMissed[t] > maxMissed) trackId[t] = 0;
+		}
+	}
+
+	/* returns the id of the new track, 0 if all slots are taken */
+	private int open(float x, float y) {
+		for(int t = 0; t < maxTracks; t++) {
+			if(trackId[t] != 0) continue;
+			trackId[t] = nextId++;
+			if(nextId <= 0) nextId = 1;
+			trackX[t] = x;
+			trackY[t] = y;
+			trackVX[t] = 0;
+			trackVY[t] = 0;
+			trackAge[t] = 1;
+			trackMissed[t] = 0;
+			trackMatched[t] = true;
+			return trackId[t];
+		}
+		return 0;
+	}
+
+	/** @return number of blobs in the last scan */
+	public int getBlobCount() {
+		return blobs;
+	}
+
+	public float getBlobX(int blob) {
+		return segmenter.getX()[blob];
+	}
+
+	public float getBlobY(int blob) {
+		return segmenter.getY()[blob];
+	}
+
+	/** @return index of the first beam of a blob */
+	public int getBlobFirstBeam(int blob) {
+		return segmenter.getFirstBeam(blob);
+	}
+
+	/** @return index of the last beam of a blob */
+	public int getBlobLastBeam(int blob) {
+		return segmenter.getLastBeam(blob);
+	}
+
+	/** @return id of the track a blob was assigned to, 0 if none */
+	public int getBlobTrack(int blob) {
+		return blobTrack[blob];
+	}
+
+	/** @return number of track slots; slots with id 0 are unused */
+	public int getTrackCapacity() {
+		return maxTracks;
+	}
+
+	/** @return id of the track in a slot, 0 if the slot is unused */
+	public int getTrackId(int slot) {
+		return trackId[slot];
+	}
+
+	public float getTrackX(int slot) {
+		return trackX[slot];
+	}
+
+	public float getTrackY(int slot) {
+		return trackY[slot];
+	}
+
+	/** @return velocity along x in mm per scan */
+	public float getTrackVX(int slot) {
+		return trackVX[slot];
+	}
+
+	/** @return velocity along y in mm per scan */
+	public float getTrackVY(int slot) {
+		return trackVY[slot];
+	}
+
+	/** @return number of scans in which the track was seen */
+	public int getTrackAge(int slot) {
+		return trackAge[slot];
+	}
+}
@@ -0,0 +1,279 @@
+package lidar;
+
+import java.util.Arrays;
+
+/**
+ * Maps the LMS111's microsecond clock onto the host's monotonic clock and
+ * watches the telegram and scan counters for lost frames.
+ *
+ * Every telegram carries the device time at which it was sent.  Pairing that
+ * time with the host time at which the telegram arrived gives one sample of
+ * the relation between both clocks, shifted by the always positive transfer
+ * delay.  Over a sliding window of samples the drift is estimated with a
+ * least squares fit, samples with unusually long delays are rejected using
+ * the median absolute deviation, and the offset is taken from the lower
+ * envelope, i.e. the fastest transfer seen in the window.  The device time
+ * at which a scan started can then be converted into an acquisition time on
+ * the {@link System#nanoTime()} clock.
+ *
+ * The device clock is a 32 bit counter that wraps after about 71 minutes;
+ * the wrap is handled transparently.  Between two telegrams the device clock
+ * must move forward by about the host time that passed.  When it does not,
+ * the unit has restarted, at whatever uptime, and the window and frame
+ * counters start over.  All state lives in arrays allocated up front.
+ */
+public class ClockSync {
+	/** Default number of samples in the sliding window */
+	public static final int DEFAULT_WINDOW = 256;
+
+	private static final long WRAP = 1L << 32;
+	/* samples further than this many MADs above the median delay are dropped */
+	private static final double OUTLIER_MADS = 3.0;
+	/* device clock may run ahead of host time by this many us between samples */
+	private static final long MAX_LEAD = 1000000;
+
+	private final long[] device;
+	private final long[] host;
+	private final double[] residual;
+	private final double[] scratch;
+	private int size;
+	private int next;
+
+	/* unwrapped device time and host time of the newest sample */
+	private long lastDevice = -1;
+	private long lastHost;
+
+	/* fit: host = hostRef + slope * (device - deviceRef) + offset */
+	private long deviceRef;
+	private long hostRef;
+	private double slope = 1000.0;
+	private double offset;
+	private boolean fitted;
+
+	private long lastTelegram = -1;
+	private long lastScan = -1;
+	private long lostTelegrams;
+	private long missedScans;
+	private long repeatedScans;
+
+	/**
+	 * Creates an estimator with the default window.
+	 */
+	public ClockSync() {
+		this(DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Creates an estimator.
+	 * @param window number of samples used for the fit
+	 */
+	public ClockSync(int window) {
+		if(window < 2) throw new IllegalArgumentException();
+		device = new long[window];
+		host = new long[window];
+		residual = new double[window];
+		scratch = new double[window];
+	}
+
+	/**
+	 * Adds the header information of a received scan, refits the clock model
+	 * and stamps the scan with its estimated acquisition time.
+	 *
+	 * @param scan the received scan
+	 * @param receiveNanos host time at which it arrived
+	 */
+	public synchronized void update(ScanData scan, long receiveNanos) {
+		scan.setReceiveTime(receiveNanos);
+		/* first, so a restart also restarts the frame counters */
+		if(scan.getTransmissionTime() >= 0)
+			addSample(scan.getTransmissionTime(), receiveNanos);
+		countFrames(scan.getTelegramCounter(), scan.getScanCounter());
+
+		if(scan.getTransmissionTime() >= 0 && scan.getScanStartTime() >= 0)
+			scan.setTimestamp(toHost(scan.getScanStartTime()));
+	}
+
+	/**
+	 * Adds one clock sample and refits the model.
+	 *
+	 * @param deviceMicros device clock value when the telegram was sent
+	 * @param hostNanos host time when it was received
+	 */
+	public synchronized void addSample(long deviceMicros, long hostNanos) {
+		long unwrapped = deviceMicros & (WRAP - 1);
+		if(lastDevice >= 0) {
+			/* the clock only moves forward, so a wrap is always a forward step */
+			long advance = (deviceMicros - lastDevice) & (WRAP - 1);
+			long elapsed = Math.max(hostNanos - lastHost, 0) / 1000;
+			if(elapsed < WRAP / 2 && advance <= elapsed + elapsed / 100 + MAX_LEAD) {
+				unwrapped = lastDevice + advance;
+			} else {
+				/* device restarted, the old samples are meaningless */
+				size = 0;
+				next = 0;
+				lastTelegram = -1;
+				lastScan = -1;
+			}
+		}
+		lastDevice = unwrapped;
+		lastHost = hostNanos;
+
+		device[next] = unwrapped;
+		host[next] = hostNanos;
+		next = (next + 1) % device.length;
+		if(size < device.length) size++;
+
+		fit();
+	}
+
+	/**
+	 * Converts a device clock value into host time.
+	 *
+	 * @param deviceMicros device clock value, as found in the telegram
+	 * @return host time on the {@link System#nanoTime()} clock, or
+	 * 			{@link ScanData#NO_TIMESTAMP} before the first sample
+	 */
+	public synchronized long toHost(long deviceMicros) {
+		if(!fitted) return ScanData.NO_TIMESTAMP;
+		long d = nearest(deviceMicros);
+		return hostRef + Math.round(slope * (d - deviceRef) + offset);
+	}
+
+	/* places a raw 32 bit value in the wrap period closest to the last sample */
+	private long nearest(long raw) {
+		if(lastDevice < 0) return raw;
+		long d = (lastDevice & ~(WRAP - 1)) | (raw & (WRAP - 1));
+		if(d - lastDevice > WRAP / 2) d -= WRAP;
+		else if(lastDevice - d > WRAP / 2) d += WRAP;
+		return d;
+	}
+
+	private void fit() {
+		final int n = size;
+		final int newest = (next - 1 + device.length) % device.length;
+		deviceRef = device[newest];
+		hostRef = host[newest];
+
+		if(n < 2) {
+			slope = 1000.0;
+			offset = 0;
+			fitted = true;
+			return;
+		}
+
+		fitSlope(Double.POSITIVE_INFINITY);
+
+		/* reject samples that took unusually long to arrive */
+		for(int i = 0; i < n; i++)
+			residual[i] = (host[i] - hostRef) - slope * (device[i] - deviceRef);
+		System.arraycopy(residual, 0, scratch, 0, n);
+		Arrays.sort(scratch, 0, n);
+		double median = scratch[n / 2];
+		for(int i = 0; i < n; i++)
+			scratch[i] = Math.abs(residual[i] - median);
+		Arrays.sort(scratch, 0, n);
+		double limit = median + OUTLIER_MADS * Math.max(scratch[n / 2], 1000.0);
+
+		fitSlope(limit);
+
+		/* lower envelope: the fastest transfer defines the offset */
+		double min = Double.MAX_VALUE;
+		for(int i = 0; i < n; i++) {
+			double r = (host[i] - hostRef) - slope * (device[i] - deviceRef);
+			if(residual[i] <= limit && r < min) min = r;
+		}
+		offset = min;
+		fitted = true;
+	}
+
+	/* least squares slope over all samples, or those with a residual below limit */
+	private void fitSlope(double limit) {
+		double sx = 0, sy = 0;
+		int m = 0;
+		for(int i = 0; i < size; i++) {
+			if(residual[i] > limit) continue;
+			sx += device[i] - deviceRef;
+			sy += host[i] - hostRef;
+			m++;
+		}
+		if(m < 2) return;
+		double mx = sx / m, my = sy / m;
+		double sxx = 0, sxy = 0;
+		for(int i = 0; i < size; i++) {
+			if(residual[i] > limit) continue;
+			double dx = device[i] - deviceRef - mx;
+			sxx += dx * dx;
+			sxy += dx * (host[i] - hostRef - my);
+		}
+		if(sxx > 0) slope = sxy / sxx;
+	}
+
+	private void countFrames(long telegram, long scan) {
+		if(telegram >= 0) {
+			if(lastTelegram >= 0) {
+				long gap = (telegram - lastTelegram) & 0xFFFF;
+				if(gap > 1) lostTelegrams += gap - 1;
+			}
+			lastTelegram = telegram;
+		}
+		if(scan >= 0) {
+			if(lastScan >= 0) {
+				long gap = (scan - lastScan) & 0xFFFF;
+				if(gap == 0) repeatedScans++;
+				else if(gap > 1) missedScans += gap - 1;
+			}
+			lastScan = scan;
+		}
+	}
+
+	/**
+	 * Returns the estimated device clock rate.
+	 * @return host nanoseconds per device microsecond, nominally 1000
+	 */
+	public synchronized double getSlope() {
+		return slope;
+	}
+
+	/**
+	 * Returns the number of telegrams missing between received ones, judged
+	 * by the telegram counter.
+	 * @return lost telegrams
+	 */
+	public synchronized long getLostTelegrams() {
+		return lostTelegrams;
+	}
+
+	/**
+	 * Returns the number of scans the unit produced that were never received,
+	 * judged by the scan counter.
+	 * @return missed scans
+	 */
+	public synchronized long getMissedScans() {
+		return missedScans;
+	}
+
+	/**
+	 * Returns how often the same scan was received twice.
+	 * @return repeated scans
+	 */
+	public synchronized long getRepeatedScans() {
+		return repeatedScans;
+	}
+
+	/**
+	 * Forgets all samples and counters, e.g. after reconnecting.
+	 */
+	public synchronized void reset() {
+		size = 0;
+		next = 0;
+		lastDevice = -1;
+		fitted = false;
+		slope = 1000.0;
+		offset = 0;
+		lastTelegram = -1;
+		lastScan = -1;
+		lostTelegrams = 0;
+		missedScans = 0;
+		repeatedScans = 0;
+	}
+}
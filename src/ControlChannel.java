@@ -0,0 +1,124 @@
+package lidar;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Second connection to an LMS111 used only for control and health queries.
+ *
+ * Health queries such as STlms and LCMstate add a round trip to the
+ * connection they are sent on.  On the scan connection that round trip delays
+ * the next scan.  A control channel opens its own connection to the unit, so
+ * the scan connection only carries scan traffic.  It polls the unit's status
+ * on a background thread and keeps the latest {@link SensorStatus}, which
+ * readers can fetch at any time without a round trip.
+ *
+ * The control port must speak CoLa A.  This can be the same port as the
+ * scan connection, since the unit accepts several clients, or a second port
+ * such as {@link #DEFAULT_PORT} configured for CoLa A.
+ */
+public class ControlChannel {
+	/** Auxiliary port of the LMS111 */
+	public static final int DEFAULT_PORT = 2112;
+
+	private final LMS111 lms;
+	private final long periodMillis;
+	/* a lock rather than synchronized, so virtual threads don't pin while closing */
+	private final ReentrantLock lock = new ReentrantLock();
+	private ScheduledExecutorService scheduler;
+	private volatile SensorStatus status;
+
+	/**
+	 * Creates a control channel.  Nothing is opened until {@link #open()}.
+	 *
+	 * @param host address of the unit
+	 * @param port CoLa A port used for control traffic
+	 * @param periodMillis delay between status polls
+	 */
+	public ControlChannel(final String host, final int port, final long periodMillis) {
+		if(periodMillis <= 0) throw new IllegalArgumentException();
+		this.lms = new LMS111(host, port);
+		this.lms.setScanConnection(false);
+		this.periodMillis = periodMillis;
+	}
+
+	/**
+	 * Connects and starts polling.
+	 * @return true if the connection was opened
+	 */
+	public boolean open() {
+		lock.lock();
+		try {
+			if(scheduler != null) return false;
+			if(!lms.connect()) return false;
+
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "LMS111-control-" + lms.getHostname());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					poll();
+				}
+			}, 0, periodMillis, TimeUnit.MILLISECONDS);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops polling and closes the connection.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			if(scheduler == null) return;
+			scheduler.shutdownNow();
+			try {
+				scheduler.awaitTermination(periodMillis + 1000, TimeUnit.MILLISECONDS);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			scheduler = null;
+			if(lms.isConnected()) lms.disconnect();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Polls the status once and publishes the result.
+	 */
+	public void poll() {
+		SensorStatus s = lms.readStatus();
+		if(s != null) status = s;
+	}
+
+	/**
+	 * Returns the latest polled status without contacting the unit.
+	 * @return latest status, null before the first successful poll
+	 */
+	public SensorStatus getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the connection used for control traffic.  Commands sent through
+	 * it do not delay scans on the scan connection.
+	 * @return the control connection
+	 */
+	public LMS111 getLMS111() {
+		return lms;
+	}
+
+	public boolean isOpen() {
+		return lms.isConnected();
+	}
+}
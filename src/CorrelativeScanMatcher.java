@@ -0,0 +1,355 @@
+package lidar;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the pose at which a scan fits a map best, over a large search window.
+ *
+ * Every map cell gets a score between 0 and 1 that falls off with the
+ * distance to the nearest obstacle.  A pose is scored by the mean score of
+ * the cells its beam endpoints fall into.  The search covers a window of
+ * positions and headings around a guess exhaustively in the result, but
+ * visits only a fraction of it with branch and bound: for each level h a
+ * max-pooled copy of the score grid holds the best score within a block of
+ * 2^h x 2^h cells, so one lookup per endpoint bounds a whole block of
+ * positions.  Blocks whose bound cannot beat the best pose found so far are
+ * skipped.  The result is the best pose on the search lattice, not an
+ * approximation of it.
+ *
+ * Rotations are searched as independent slices on a {@link ForkJoinPool};
+ * they share the best score so far, which lets each slice prune with what
+ * the others found.
+ *
+ * Poses are {@link Position}s in the map frame with x and y in mm and the
+ * heading in degrees, counter-clockwise from the +x axis, as used by
+ * {@link Position#addDistance(double)}.  This is not the bearing convention
+ * of {@link Position#computeThetaDeltaToGoal(Position)}, which starts at -y;
+ * convert before mixing the two.
+ */
+public class CorrelativeScanMatcher {
+	/* rotation slices per task */
+	private static final int SLICES_PER_TASK = 2;
+
+	private final OccupancyGrid map;
+	private final ForkJoinPool pool;
+	private final int levels;
+	/* padding around the pooled grids so offsets may leave the map */
+	private final int pad;
+	private final int width;
+	private final int height;
+	/* pooled[h] holds the max score of the 2^h x 2^h block starting at each cell */
+	private final float[][] pooled;
+
+	private int maxBeams = 720;
+	private int maxRange = 20000;
+
+	/* result of the last match */
+	private final AtomicInteger bestBits = new AtomicInteger();
+	private double bestX;
+	private double bestY;
+	private double bestHeading;
+	private double bestScore;
+	private boolean found;
+	private long evaluations;
+
+	/**
+	 * Precomputes the score grids of a map.
+	 *
+	 * @param map the map; occupied cells are obstacles
+	 * @param sigma distance in mm at which a cell's score falls to e^-0.5
+	 * @param levels number of pooled levels, the coarsest block is
+	 * 			2^(levels-1) cells wide
+	 * @param pool pool searching the rotations, null for the common pool
+	 */
+	public CorrelativeScanMatcher(OccupancyGrid map, double sigma, int levels,
+			ForkJoinPool pool) {
+		if(levels < 1 || levels > 16 || sigma <= 0) throw new IllegalArgumentException();
+		this.map = map;
+		this.pool = pool != null ? pool : ForkJoinPool.commonPool();
+		this.levels = levels;
+		this.pad = 1 << (levels - 1);
+
+		final int w = map.getWidth(), h = map.getHeight();
+		this.width = w + 2 * pad;
+		this.height = h + 2 * pad;
+
+		/* base level, exact scores */
+		final float[] dist = LikelihoodField.distanceTransform(map);
+		final double res = map.getResolution();
+		final double k = res * res / (2 * sigma * sigma);
+		pooled = new float[levels][];
+		pooled[0] = new float[width * height];
+		for(int y = 0; y < h; y++)
+			for(int x = 0; x < w; x++)
+				pooled[0][(y + pad) * width + x + pad] = (float) Math.exp(-dist[y * w + x] * k);
+
+		/* each level is the max of four blocks of the level below */
+		for(int l = 1; l < levels; l++) {
+			final float[] below = pooled[l - 1], grid = new float[width * height];
+			final int s = 1 << (l - 1);
+			for(int y = 0; y < height; y++) {
+				for(int x = 0; x < width; x++) {
+					float m = below[y * width + x];
+					if(x + s < width) m = Math.max(m, below[y * width + x + s]);
+					if(y + s < height) {
+						m = Math.max(m, below[(y + s) * width + x]);
+						if(x + s < width) m = Math.max(m, below[(y + s) * width + x + s]);
+					}
+					grid[y * width + x] = m;
+				}
+			}
+			pooled[l] = grid;
+		}
+	}
+
+	/**
+	 * Limits the beams used per match.
+	 *
+	 * @param maxBeams most beams used, evenly spread over the scan
+	 * @param maxRange beams longer than this in mm are ignored
+	 */
+	public void setBeamSelection(int maxBeams, int maxRange) {
+		if(maxBeams <= 0 || maxRange <= 0) throw new IllegalArgumentException();
+		this.maxBeams = maxBeams;
+		this.maxRange = maxRange;
+	}
+
+	/**
+	 * Searches for the best pose of the robot within a window around a guess.
+	 *
+	 * @param scan the scan
+	 * @param mount pose of the LMS111 in the robot frame (mm, degrees)
+	 * @param guess initial pose of the robot in the map (mm, degrees)
+	 * @param linearWindow half width of the position window in mm
+	 * @param angularWindow half width of the heading window in degrees
+	 * @param minScore poses scoring lower are not reported, [0, 1)
+	 * @return best robot pose, null if none reaches minScore
+	 */
+	public Position match(ScanData scan, Position mount, Position guess,
+			double linearWindow, double angularWindow, double minScore) {
+		/* endpoints in the robot frame */
+		final BeamGeometry geometry = BeamGeometry.of(scan);
+		final int[] dist = scan.getDIST1();
+		final int n = Math.min(dist.length, geometry.getCount());
+		final int step = Math.max(1, (n + maxBeams - 1) / maxBeams);
+		final float[] rx = new float[(n + step - 1) / step];
+		final float[] ry = new float[rx.length];
+		final double mh = Math.toRadians(mount.heading);
+		final double mc = Math.cos(mh), ms = Math.sin(mh);
+		int points = 0;
+		double far = 0;
+		for(int i = 0; i < n; i += step) {
+			if(dist[i] <= 0 || dist[i] > maxRange) continue;
+			double lx = dist[i] * geometry.cos(i), ly = dist[i] * geometry.sin(i);
+			rx[points] = (float) (mount.x + mc * lx - ms * ly);
+			ry[points] = (float) (mount.y + ms * lx + mc * ly);
+			far = Math.max(far, Math.hypot(rx[points], ry[points]));
+			points++;
+		}
+		found = false;
+		evaluations = 0;
+		if(points == 0) return null;
+
+		/* angular step that moves the farthest point by about one cell */
+		final double res = map.getResolution();
+		final double angleStep = far > res
+				? Math.acos(1 - res * res / (2 * far * far)) : Math.toRadians(1);
+		final int slices = (int) Math.ceil(Math.toRadians(angularWindow) / angleStep);
+		final int window = (int) Math.ceil(linearWindow / res);
+
+		bestBits.set(Float.floatToIntBits((float) minScore));
+		pool.invoke(new Slices(rx, ry, points, guess, angleStep, -slices, slices + 1, window));
+
+		if(!found) return null;
+		return new Position(bestX, bestY, bestHeading);
+	}
+
+	/** @return score of the pose returned by the last match, in [0, 1] */
+	public double getScore() {
+		return bestScore;
+	}
+
+	/** @return number of score evaluations made by the last match */
+	public synchronized long getEvaluations() {
+		return evaluations;
+	}
+
+	public OccupancyGrid getMap() {
+		return map;
+	}
+
+	/* rotation slices [from, to) */
+	private class Slices extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final float[] rx;
+		private final float[] ry;
+		private final int points;
+		private final Position guess;
+		private final double angleStep;
+		private final int from;
+		private final int to;
+		private final int window;
+
+		Slices(float[] rx, float[] ry, int points, Position guess, double angleStep,
+				int from, int to, int window) {
+			this.rx = rx;
+			this.ry = ry;
+			this.points = points;
+			this.guess = guess;
+			this.angleStep = angleStep;
+			this.from = from;
+			this.to = to;
+			this.window = window;
+		}
+
+		protected void compute() {
+			if(to - from > SLICES_PER_TASK) {
+				int mid = (from + to) >> 1;
+				invokeAll(new Slices(rx, ry, points, guess, angleStep, from, mid, window),
+						new Slices(rx, ry, points, guess, angleStep, mid, to, window));
+				return;
+			}
+			for(int k = from; k < to; k++) new Slice(this, k).search();
+		}
+	}
+
+	/* branch and bound over the positions of one rotation */
+	private class Slice {
+		private final double heading;
+		private final double guessX;
+		private final double guessY;
+		private final int window;
+		private final int points;
+		/* endpoint cells at the window's corner, padded grid coordinates */
+		private final int[] cx;
+		private final int[] cy;
+		private long evaluated;
+
+		Slice(Slices task, int k) {
+			this.heading = Math.toRadians(task.guess.heading) + k * task.angleStep;
+			this.guessX = task.guess.x;
+			this.guessY = task.guess.y;
+			this.window = task.window;
+			this.points = task.points;
+			this.cx = new int[points];
+			this.cy = new int[points];
+
+			final double res = map.getResolution();
+			final double c = Math.cos(heading), s = Math.sin(heading);
+			final double gx = (task.guess.x - map.getOriginX()) / res;
+			final double gy = (task.guess.y - map.getOriginY()) / res;
+			for(int i = 0; i < points; i++) {
+				double x = gx + (c * task.rx[i] - s * task.ry[i]) / res;
+				double y = gy + (s * task.rx[i] + c * task.ry[i]) / res;
+				cx[i] = (int) Math.floor(x) - window + pad;
+				cy[i] = (int) Math.floor(y) - window + pad;
+			}
+		}
+
+		void search() {
+			final int top = levels - 1, size = 1 << top, span = 2 * window + 1;
+			final int nx = (span + size - 1) / size;
+			final int count = nx * nx;
+			final int[] ox = new int[count], oy = new int[count];
+			final float[] bound = new float[count];
+			for(int j = 0; j < nx; j++) {
+				for(int i = 0; i < nx; i++) {
+					int c = j * nx + i;
+					ox[c] = i * size;
+					oy[c] = j * size;
+					bound[c] = score(top, ox[c], oy[c]);
+				}
+			}
+			sort(ox, oy, bound, count);
+			for(int c = 0; c < count; c++) {
+				if(bound[c] <= best()) break;
+				branch(top, ox[c], oy[c], bound[c], span);
+			}
+			synchronized(CorrelativeScanMatcher.this) {
+				evaluations += evaluated;
+			}
+		}
+
+		private void branch(int level, int x, int y, float bound, int span) {
+			if(level == 0) {
+				offer(bound, x, y);
+				return;
+			}
+			final int half = 1 << (level - 1);
+			final int[] ox = new int[4], oy = new int[4];
+			final float[] b = new float[4];
+			int n = 0;
+			for(int j = 0; j < 2; j++) {
+				for(int i = 0; i < 2; i++) {
+					int px = x + i * half, py = y + j * half;
+					if(px >= span || py >= span) continue;
+					ox[n] = px;
+					oy[n] = py;
+					b[n] = score(level - 1, px, py);
+					n++;
+				}
+			}
+			sort(ox, oy, b, n);
+			for(int c = 0; c < n; c++) {
+				if(b[c] <= best()) return;
+				branch(level - 1, ox[c], oy[c], b[c], span);
+			}
+		}
+
+		/* mean pooled score with the window corner moved by (x, y) cells */
+		private float score(int level, int x, int y) {
+			evaluated++;
+			final float[] grid = pooled[level];
+			float sum = 0;
+			for(int i = 0; i < points; i++) {
+				int px = cx[i] + x, py = cy[i] + y;
+				if(px < 0 || py < 0 || px >= width || py >= height) continue;
+				sum += grid[py * width + px];
+			}
+			return sum / points;
+		}
+
+		private void offer(float score, int x, int y) {
+			final int bits = Float.floatToIntBits(score);
+			while(true) {
+				int current = bestBits.get();
+				/* scores are not negative, so their bits order like ints */
+				if(bits <= current) return;
+				if(bestBits.compareAndSet(current, bits)) break;
+			}
+			final double res = map.getResolution();
+			synchronized(CorrelativeScanMatcher.this) {
+				if(bits < bestBits.get()) return;
+				bestX = guessX + (x - window) * res;
+				bestY = guessY + (y - window) * res;
+				bestHeading = Math.toDegrees(heading);
+				bestScore = score;
+				found = true;
+			}
+		}
+
+		private float best() {
+			return Float.intBitsToFloat(bestBits.get());
+		}
+	}
+
+	/* sorts candidates by bound, highest first; lists are short */
+	private static void sort(int[] x, int[] y, float[] bound, int n) {
+		for(int i = 1; i < n; i++) {
+			int px = x[i], py = y[i];
+			float b = bound[i];
+			int j = i - 1;
+			while(j >= 0 && bound[j] < b) {
+				x[j + 1] = x[j];
+				y[j + 1] = y[j];
+				bound[j + 1] = bound[j];
+				j--;
+			}
+			x[j + 1] = px;
+			y[j + 1] = py;
+			bound[j + 1] = b;
+		}
+	}
+}
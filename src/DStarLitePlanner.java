@@ -0,0 +1,508 @@
+package lidar;
+
+import java.util.Arrays;
+
+/**
+ * Incremental path planner (D* Lite) on a local occupancy grid that is kept
+ * up to date from live scans.
+ *
+ * The planner searches backwards from the goal, so when the robot moves only
+ * the heuristic offset changes, and when a scan changes the map only the
+ * cells whose cost changed and their neighbours are re-examined.  Previous
+ * search results stay valid everywhere else, which keeps replanning within
+ * a scan period even on large grids.
+ *
+ * Obstacles are inflated by the robot's radius.  Each cell counts the
+ * occupied cells within that radius; a cell is blocked while its count is
+ * positive.  Adding or clearing one obstacle touches only the cells of its
+ * disk, and only those whose blocked state flips are handed to the search.
+ *
+ * The grid is 8-connected; diagonal moves are not allowed to cut a blocked
+ * corner.  Costs are integers, {@link #STRAIGHT} per straight and
+ * {@link #DIAGONAL} per diagonal step, so keys compare exactly: the search
+ * ends on ties between keys, which are the rule rather than the exception,
+ * and floating point keys summed along different paths would miss them.
+ * All state lives in arrays sized to the grid and allocated once.
+ */
+public class DStarLitePlanner {
+	/** Cost of a straight step. */
+	public static final int STRAIGHT = 10;
+	/** Cost of a diagonal step, 10 * sqrt(2) rounded. */
+	public static final int DIAGONAL = 14;
+	private static final int INF = Integer.MAX_VALUE;
+	private static final int[] DX = { 1, 1, 0, -1, -1, -1, 0, 1 };
+	private static final int[] DY = { 0, 1, 1, 1, 0, -1, -1, -1 };
+
+	private final OccupancyGrid grid;
+	private final int width;
+	private final int height;
+
+	/* inflation */
+	private final int[] diskX;
+	private final int[] diskY;
+	private final short[] obstacles;
+
+	/* search state */
+	private final int[] g;
+	private final int[] rhs;
+	private long km;
+	private int start = -1;
+	private int goal = -1;
+	private int lastStart = -1;
+
+	/* indexed binary heap keyed by (k1, k2) */
+	private final int[] heap;
+	private final long[] heapK1;
+	private final int[] heapK2;
+	private final int[] heapPos;
+	private int heapSize;
+
+	/* cells whose blocked state changed since the last plan */
+	private final int[] changed;
+	private final boolean[] isChanged;
+	private int changedCount;
+
+	private long expansions;
+
+	/**
+	 * Creates a planner.  Cells of the grid that are already occupied are
+	 * taken as obstacles.
+	 *
+	 * @param grid local map; the planner writes scan results into it
+	 * @param robotRadius obstacles are inflated by this many mm
+	 */
+	public DStarLitePlanner(OccupancyGrid grid, double robotRadius) {
+		this.grid = grid;
+		this.width = grid.getWidth();
+		this.height = grid.getHeight();
+		final int n = width * height;
+
+		int r = (int) Math.ceil(robotRadius / grid.getResolution());
+		int count = 0;
+		for(int dy = -r; dy <= r; dy++)
+			for(int dx = -r; dx <= r; dx++)
+				if(dx * dx + dy * dy <= r * r) count++;
+		diskX = new int[count];
+		diskY = new int[count];
+		count = 0;
+		for(int dy = -r; dy <= r; dy++)
+			for(int dx = -r; dx <= r; dx++)
+				if(dx * dx + dy * dy <= r * r) {
+					diskX[count] = dx;
+					diskY[count] = dy;
+					count++;
+				}
+
+		obstacles = new short[n];
+		g = new int[n];
+		rhs = new int[n];
+		heap = new int[n];
+		heapK1 = new long[n];
+		heapK2 = new int[n];
+		heapPos = new int[n];
+		changed = new int[n];
+		isChanged = new boolean[n];
+
+		byte[] cells = grid.getCells();
+		for(int i = 0; i < n; i++)
+			if(cells[i] >= OccupancyGrid.OCCUPIED_THRESHOLD) addObstacle(i);
+		clearChanges();
+	}
+
+	/**
+	 * Sets a new goal and starts the search over.
+	 *
+	 * @param x goal x in mm, in the grid's frame
+	 * @param y goal y in mm
+	 */
+	public void setGoal(double x, double y) {
+		int cell = cellAt(x, y);
+		if(cell < 0) throw new IllegalArgumentException("goal outside grid");
+
+		Arrays.fill(g, INF);
+		Arrays.fill(rhs, INF);
+		Arrays.fill(heapPos, -1);
+		heapSize = 0;
+		km = 0;
+		goal = cell;
+		rhs[goal] = 0;
+		if(start >= 0) {
+			lastStart = start;
+			push(goal, h(start, goal), 0);
+		}
+		clearChanges();
+	}
+
+	/**
+	 * Moves the start, i.e. the robot's position.
+	 *
+	 * @param x robot x in mm, in the grid's frame
+	 * @param y robot y in mm
+	 */
+	public void setStart(double x, double y) {
+		int cell = cellAt(x, y);
+		if(cell < 0) throw new IllegalArgumentException("start outside grid");
+
+		if(goal >= 0 && lastStart < 0) {
+			/* first start after the goal was set */
+			start = cell;
+			lastStart = cell;
+			push(goal, h(start, goal), 0);
+			return;
+		}
+		if(lastStart >= 0 && cell != start) km += h(lastStart, cell);
+		lastStart = cell;
+		start = cell;
+	}
+
+	/**
+	 * Writes a scan into the grid: cells along each beam are cleared and the
+	 * cell at its end is marked occupied.  Changed cells are remembered for
+	 * the next {@link #plan()}.
+	 *
+	 * @param scan the scan
+	 * @param geometry beam directions matching the scan
+	 * @param robot robot pose in the grid's frame (mm, degrees)
+	 * @param mount sensor pose in the robot frame (mm, degrees)
+	 */
+	public void integrate(ScanData scan, BeamGeometry geometry, Position robot, Position mount) {
+		final double rh = Math.toRadians(robot.heading);
+		final double rc = Math.cos(rh), rs = Math.sin(rh);
+		final double sx = robot.x + rc * mount.x - rs * mount.y;
+		final double sy = robot.y + rs * mount.x + rc * mount.y;
+		final double sh = rh + Math.toRadians(mount.heading);
+		final double c = Math.cos(sh), s = Math.sin(sh);
+
+		final int x0 = grid.toCellX(sx), y0 = grid.toCellY(sy);
+		final int[] dist = scan.getDIST1();
+		final int beams = Math.min(dist.length, geometry.getCount());
+
+		for(int i = 0; i < beams; i++) {
+			if(dist[i] <= 0) continue;
+			double lx = dist[i] * geometry.cos(i), ly = dist[i] * geometry.sin(i);
+			int x1 = grid.toCellX(sx + c * lx - s * ly);
+			int y1 = grid.toCellY(sy + s * lx + c * ly);
+			trace(x0, y0, x1, y1);
+			setCell(x1, y1, OccupancyGrid.OCCUPIED);
+		}
+	}
+
+	/* clears the cells from (x0, y0) up to but excluding (x1, y1), Bresenham */
+	private void trace(int x0, int y0, int x1, int y1) {
+		int dx = Math.abs(x1 - x0), dy = -Math.abs(y1 - y0);
+		int stepX = x0 < x1 ? 1 : -1, stepY = y0 < y1 ? 1 : -1;
+		int err = dx + dy;
+		int x = x0, y = y0;
+		while(x != x1 || y != y1) {
+			setCell(x, y, OccupancyGrid.FREE);
+			int e2 = 2 * err;
+			if(e2 >= dy) {
+				err += dy;
+				x += stepX;
+			}
+			if(e2 <= dx) {
+				err += dx;
+				y += stepY;
+			}
+		}
+	}
+
+	/**
+	 * Sets one grid cell, updating obstacle inflation and the set of changed
+	 * cells.  Cells outside the grid are ignored.
+	 */
+	public void setCell(int cx, int cy, byte value) {
+		if(!grid.contains(cx, cy)) return;
+		int i = cy * width + cx;
+		byte[] cells = grid.getCells();
+		boolean was = cells[i] >= OccupancyGrid.OCCUPIED_THRESHOLD;
+		boolean now = value >= OccupancyGrid.OCCUPIED_THRESHOLD;
+		cells[i] = value;
+		if(was == now) return;
+		if(now) addObstacle(i);
+		else removeObstacle(i);
+	}
+
+	private void addObstacle(int cell) {
+		int cx = cell % width, cy = cell / width;
+		for(int k = 0; k < diskX.length; k++) {
+			int x = cx + diskX[k], y = cy + diskY[k];
+			if(x < 0 || y < 0 || x >= width || y >= height) continue;
+			int j = y * width + x;
+			if(obstacles[j]++ == 0) markChanged(j);
+		}
+	}
+
+	private void removeObstacle(int cell) {
+		int cx = cell % width, cy = cell / width;
+		for(int k = 0; k < diskX.length; k++) {
+			int x = cx + diskX[k], y = cy + diskY[k];
+			if(x < 0 || y < 0 || x >= width || y >= height) continue;
+			int j = y * width + x;
+			if(--obstacles[j] == 0) markChanged(j);
+		}
+	}
+
+	private void markChanged(int cell) {
+		if(isChanged[cell]) return;
+		isChanged[cell] = true;
+		changed[changedCount++] = cell;
+	}
+
+	private void clearChanges() {
+		for(int i = 0; i < changedCount; i++) isChanged[changed[i]] = false;
+		changedCount = 0;
+	}
+
+	/**
+	 * Repairs the search for the cells changed since the last call and for
+	 * the current start.
+	 *
+	 * @return true if a path from start to goal exists
+	 */
+	public boolean plan() {
+		if(start < 0 || goal < 0) throw new IllegalStateException("start and goal must be set");
+
+		for(int k = 0; k < changedCount; k++) {
+			int cell = changed[k];
+			updateVertex(cell);
+			int cx = cell % width, cy = cell / width;
+			for(int d = 0; d < 8; d++) {
+				int x = cx + DX[d], y = cy + DY[d];
+				if(x >= 0 && y >= 0 && x < width && y < height)
+					updateVertex(y * width + x);
+			}
+		}
+		clearChanges();
+
+		computeShortestPath();
+		return rhs[start] != INF;
+	}
+
+	private void computeShortestPath() {
+		while(heapSize > 0) {
+			int u = heap[0];
+			long k1 = heapK1[0];
+			int k2 = heapK2[0];
+			int sk2 = Math.min(g[start], rhs[start]);
+			long sk1 = key(sk2, start);
+			if(!less(k1, k2, sk1, sk2) && rhs[start] == g[start]) break;
+
+			expansions++;
+			int m = Math.min(g[u], rhs[u]);
+			long n1 = key(m, u);
+			if(less(k1, k2, n1, m)) {
+				update(u, n1, m);
+			} else if(g[u] > rhs[u]) {
+				g[u] = rhs[u];
+				remove(u);
+				updateNeighbours(u);
+			} else {
+				g[u] = INF;
+				updateVertex(u);
+				updateNeighbours(u);
+			}
+		}
+	}
+
+	private void updateNeighbours(int u) {
+		int cx = u % width, cy = u / width;
+		for(int d = 0; d < 8; d++) {
+			int x = cx + DX[d], y = cy + DY[d];
+			if(x >= 0 && y >= 0 && x < width && y < height)
+				updateVertex(y * width + x);
+		}
+	}
+
+	private void updateVertex(int u) {
+		if(u != goal) {
+			int best = INF;
+			int cx = u % width, cy = u / width;
+			for(int d = 0; d < 8; d++) {
+				int x = cx + DX[d], y = cy + DY[d];
+				if(x < 0 || y < 0 || x >= width || y >= height) continue;
+				int v = y * width + x;
+				int cost = cost(cx, cy, d);
+				if(cost == INF || g[v] == INF) continue;
+				int t = cost + g[v];
+				if(t < best) best = t;
+			}
+			rhs[u] = best;
+		}
+		if(heapPos[u] >= 0) remove(u);
+		if(g[u] != rhs[u]) {
+			int m = Math.min(g[u], rhs[u]);
+			push(u, key(m, u), m);
+		}
+	}
+
+	/* first key component; infinite costs stay above every finite key */
+	private long key(int m, int u) {
+		return m == INF ? Long.MAX_VALUE : m + h(start, u) + km;
+	}
+
+	/* cost of moving from (cx, cy) in direction d */
+	private int cost(int cx, int cy, int d) {
+		int x = cx + DX[d], y = cy + DY[d];
+		if(obstacles[cy * width + cx] > 0 || obstacles[y * width + x] > 0) return INF;
+		if((d & 1) == 0) return STRAIGHT;
+		/* no cutting corners */
+		if(obstacles[cy * width + x] > 0 || obstacles[y * width + cx] > 0) return INF;
+		return DIAGONAL;
+	}
+
+	/* octile distance in step costs */
+	private int h(int a, int b) {
+		if(a < 0 || b < 0) return 0;
+		int dx = Math.abs(a % width - b % width), dy = Math.abs(a / width - b / width);
+		return STRAIGHT * Math.max(dx, dy) + (DIAGONAL - STRAIGHT) * Math.min(dx, dy);
+	}
+
+	/**
+	 * Extracts the current path by walking downhill from the start.
+	 *
+	 * @param xs receives waypoint x coordinates in mm
+	 * @param ys receives waypoint y coordinates in mm
+	 * @return number of waypoints written, 0 if there is no path
+	 */
+	public int getPath(double[] xs, double[] ys) {
+		if(start < 0 || goal < 0 || g[start] == INF) return 0;
+		int n = 0, u = start;
+		while(n < xs.length) {
+			xs[n] = grid.toWorldX(u % width);
+			ys[n] = grid.toWorldY(u / width);
+			n++;
+			if(u == goal) break;
+
+			int cx = u % width, cy = u / width, next = -1;
+			int best = INF;
+			for(int d = 0; d < 8; d++) {
+				int x = cx + DX[d], y = cy + DY[d];
+				if(x < 0 || y < 0 || x >= width || y >= height) continue;
+				int cost = cost(cx, cy, d);
+				if(cost == INF) continue;
+				int v = y * width + x;
+				if(g[v] == INF) continue;
+				int t = cost + g[v];
+				if(t < best) {
+					best = t;
+					next = v;
+				}
+			}
+			if(next < 0) return 0;
+			u = next;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the path cost from the start to the goal.
+	 * @return cost in mm, infinite if there is no path
+	 */
+	public double getPathCost() {
+		if(start < 0 || g[start] == INF) return Double.POSITIVE_INFINITY;
+		return (double) g[start] * grid.getResolution() / STRAIGHT;
+	}
+
+	/**
+	 * Returns the number of cell expansions since the planner was created, a
+	 * measure of the work done by the incremental search.
+	 * @return expansions
+	 */
+	public long getExpansions() {
+		return expansions;
+	}
+
+	/**
+	 * Reports whether a cell is blocked after inflation.
+	 */
+	public boolean isBlocked(int cx, int cy) {
+		return !grid.contains(cx, cy) || obstacles[cy * width + cx] > 0;
+	}
+
+	public OccupancyGrid getGrid() {
+		return grid;
+	}
+
+	private int cellAt(double x, double y) {
+		int cx = grid.toCellX(x), cy = grid.toCellY(y);
+		return grid.contains(cx, cy) ? cy * width + cx : -1;
+	}
+
+	/* heap */
+
+	private static boolean less(long a1, int a2, long b1, int b2) {
+		return a1 < b1 || (a1 == b1 && a2 < b2);
+	}
+
+	private void push(int cell, long k1, int k2) {
+		int i = heapSize++;
+		heap[i] = cell;
+		heapK1[i] = k1;
+		heapK2[i] = k2;
+		heapPos[cell] = i;
+		siftUp(i);
+	}
+
+	private void update(int cell, long k1, int k2) {
+		int i = heapPos[cell];
+		heapK1[i] = k1;
+		heapK2[i] = k2;
+		siftUp(i);
+		siftDown(heapPos[cell]);
+	}
+
+	private void remove(int cell) {
+		int i = heapPos[cell];
+		heapPos[cell] = -1;
+		int last = --heapSize;
+		if(i == last) return;
+		move(last, i);
+		int moved = heap[i];
+		siftUp(i);
+		siftDown(heapPos[moved]);
+	}
+
+	private void move(int from, int to) {
+		heap[to] = heap[from];
+		heapK1[to] = heapK1[from];
+		heapK2[to] = heapK2[from];
+		heapPos[heap[to]] = to;
+	}
+
+	private void siftUp(int i) {
+		int cell = heap[i];
+		long k1 = heapK1[i];
+		int k2 = heapK2[i];
+		while(i > 0) {
+			int parent = (i - 1) >> 1;
+			if(!less(k1, k2, heapK1[parent], heapK2[parent])) break;
+			move(parent, i);
+			i = parent;
+		}
+		heap[i] = cell;
+		heapK1[i] = k1;
+		heapK2[i] = k2;
+		heapPos[cell] = i;
+	}
+
+	private void siftDown(int i) {
+		int cell = heap[i];
+		long k1 = heapK1[i];
+		int k2 = heapK2[i];
+		while(true) {
+			int child = 2 * i + 1;
+			if(child >= heapSize) break;
+			if(child + 1 < heapSize && less(heapK1[child + 1], heapK2[child + 1],
+					heapK1[child], heapK2[child]))
+				child++;
+			if(!less(heapK1[child], heapK2[child], k1, k2)) break;
+			move(child, i);
+			i = child;
+		}
+		heap[i] = cell;
+		heapK1[i] = k1;
+		heapK2[i] = k2;
+		heapPos[cell] = i;
+	}
+}
@@ -0,0 +1,105 @@
+package lidar;
+
+/**
+ * Picks one return per beam from two-echo scans.
+ *
+ * With the echo filter set to {@link LMS111#ECHO_ALL} each beam may carry a
+ * first echo (DIST1/RSSI1) and a second, farther one (DIST2/RSSI2).  Rain,
+ * dust and fog give weak first echoes in front of the real target, while
+ * glass and fences give a solid first echo with more behind it.  For each
+ * beam this stage keeps the last echo whose remission reaches the solid
+ * threshold.  If no echo is solid it keeps the strongest one, unless that is
+ * below the reject threshold, in which case the beam reports no echo (0).
+ *
+ * The result is written into one output scan that is reused for every call,
+ * so fusing does not allocate.  The output is valid until the next call.
+ */
+public class EchoFusion {
+	private final int solidThreshold;
+	private final int rejectThreshold;
+	private ScanData output;
+	private int suppressed;
+	private int rejected;
+
+	/**
+	 * Creates a fusion stage.
+	 *
+	 * @param solidThreshold smallest remission of a solid echo
+	 * @param rejectThreshold echoes weaker than this are never used, 0 to
+	 * 			keep every echo
+	 */
+	public EchoFusion(int solidThreshold, int rejectThreshold) {
+		if(rejectThreshold > solidThreshold) throw new IllegalArgumentException();
+		this.solidThreshold = solidThreshold;
+		this.rejectThreshold = rejectThreshold;
+	}
+
+	/**
+	 * Fuses the echoes of a scan.  Scans without a second echo are passed
+	 * through, with weak first echoes rejected.
+	 *
+	 * @param scan the scan, with DIST1/RSSI1 and optionally DIST2/RSSI2
+	 * @return the fused scan in DIST1/RSSI1, reused by the next call
+	 */
+	public ScanData fuse(ScanData scan) {
+		final int[] d1 = scan.getDIST1();
+		final int[] r1 = scan.getRSSI1();
+		final int[] d2 = scan.getDIST2();
+		final int[] r2 = scan.getRSSI2();
+		final int n = d1.length;
+
+		if(output == null || output.getDIST1().length != n)
+			output = new ScanData(new int[n], new int[n]);
+		output.copyHeader(scan);
+		final int[] dist = output.getDIST1();
+		final int[] rssi = output.getRSSI1();
+
+		final boolean first = r1 != null && r1.length >= n;
+		final boolean second = d2 != null && r2 != null && d2.length >= n && r2.length >= n;
+		int suppressed = 0, rejected = 0;
+
+		for(int i = 0; i < n; i++) {
+			int da = d1[i], ra = first ? r1[i] : solidThreshold;
+			int db = second ? d2[i] : 0, rb = second ? r2[i] : 0;
+			if(da <= 0) ra = -1;
+			if(db <= 0) rb = -1;
+
+			int d, r;
+			if(rb >= solidThreshold) {
+				/* last solid echo */
+				d = db;
+				r = rb;
+				if(ra >= 0 && ra < solidThreshold) suppressed++;
+			} else if(ra >= solidThreshold || ra >= rb) {
+				d = da;
+				r = ra;
+			} else {
+				d = db;
+				r = rb;
+				if(ra >= 0) suppressed++;
+			}
+
+			if(r < rejectThreshold) {
+				if(r >= 0) rejected++;
+				d = 0;
+				r = 0;
+			}
+			dist[i] = d;
+			rssi[i] = r;
+		}
+
+		this.suppressed = suppressed;
+		this.rejected = rejected;
+		return output;
+	}
+
+	/** @return beams of the last scan where a weak first echo was skipped */
+	public int getSuppressedCount() {
+		return suppressed;
+	}
+
+	/** @return beams of the last scan cleared because all echoes were weak */
+	public int getRejectedCount() {
+		return rejected;
+	}
+}
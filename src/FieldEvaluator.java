@@ -0,0 +1,162 @@
+package lidar;
+
+/**
+ * Evaluates safety fields on every scan.
+ *
+ * The fields are compiled into per-beam range limits for the beam layout of
+ * the scans, and compiled again only when that layout changes.  Evaluating a
+ * scan is then one linear pass over {@link ScanData#getDIST1()} per field
+ * with no allocation, so the time from receiving a scan to reporting a
+ * violation is small and does not vary with the shape of the fields.
+ *
+ * A field becomes violated after it has been hit in a given number of
+ * consecutive scans and clears after it has been free for a given number of
+ * consecutive scans.  Beams without an echo (range 0) never violate a
+ * field.
+ *
+ * Register the evaluator as a {@link ScanListener} directly on the reading
+ * thread for the lowest latency.
+ */
+public class FieldEvaluator implements ScanListener {
+	private final SafetyField[] fields;
+	private final FieldListener listener;
+	private final int onScans;
+	private final int offScans;
+
+	private BeamGeometry geometry;
+	private int[][] near;
+	private int[][] far;
+
+	/* per field debounce state */
+	private final boolean[] violated;
+	private final int[] hitRun;
+	private final int[] clearRun;
+	private final int[] hitBeams;
+	private final int[] closest;
+
+	/**
+	 * Creates an evaluator.
+	 *
+	 * @param fields fields to evaluate, in the order they are reported
+	 * @param listener receives state changes, may be null
+	 * @param onScans consecutive hit scans before a field is violated
+	 * @param offScans consecutive free scans before a violation clears
+	 */
+	public FieldEvaluator(SafetyField[] fields, FieldListener listener, int onScans,
+			int offScans) {
+		if(onScans < 1 || offScans < 1) throw new IllegalArgumentException();
+		this.fields = fields.clone();
+		this.listener = listener;
+		this.onScans = onScans;
+		this.offScans = offScans;
+		this.violated = new boolean[fields.length];
+		this.hitRun = new int[fields.length];
+		this.clearRun = new int[fields.length];
+		this.hitBeams = new int[fields.length];
+		this.closest = new int[fields.length];
+	}
+
+	public void scanReceived(ScanData scan) {
+		evaluate(scan);
+	}
+
+	/**
+	 * Evaluates all fields on a scan and reports state changes.
+	 *
+	 * @param scan the scan
+	 * @return true if any field is violated after this scan
+	 */
+	public boolean evaluate(ScanData scan) {
+		if(geometry == null || !geometry.matches(scan)) compile(BeamGeometry.of(scan));
+
+		final int[] dist = scan.getDIST1();
+		final int beams = Math.min(dist.length, geometry.getCount());
+		boolean any = false;
+
+		for(int f = 0; f < fields.length; f++) {
+			final int[] lo = near[f], hi = far[f];
+			int hits = 0, min = Integer.MAX_VALUE;
+			for(int i = 0; i < beams; i++) {
+				final int d = dist[i];
+				if(d > 0 && d >= lo[i] && d < hi[i]) {
+					hits++;
+					if(d < min) min = d;
+				}
+			}
+			hitBeams[f] = hits;
+			closest[f] = hits > 0 ? min : -1;
+
+			if(hits >= fields[f].getMinBeams()) {
+				clearRun[f] = 0;
+				if(++hitRun[f] >= onScans && !violated[f]) {
+					violated[f] = true;
+					if(listener != null) listener.fieldChanged(fields[f], true, scan);
+				}
+			} else {
+				hitRun[f] = 0;
+				if(++clearRun[f] >= offScans && violated[f]) {
+					violated[f] = false;
+					if(listener != null) listener.fieldChanged(fields[f], false, scan);
+				}
+			}
+			any |= violated[f];
+		}
+		return any;
+	}
+
+	private void compile(BeamGeometry geometry) {
+		int n = geometry.getCount();
+		near = new int[fields.length][n];
+		far = new int[fields.length][n];
+		for(int f = 0; f < fields.length; f++)
+			fields[f].compile(geometry, near[f], far[f]);
+		this.geometry = geometry;
+	}
+
+	/**
+	 * Returns the debounced state of a field.
+	 * @param field index of the field
+	 * @return true if violated
+	 */
+	public boolean isViolated(int field) {
+		return violated[field];
+	}
+
+	/**
+	 * Returns the number of beams inside a field in the last scan.
+	 * @param field index of the field
+	 * @return beams in the field
+	 */
+	public int getHitBeams(int field) {
+		return hitBeams[field];
+	}
+
+	/**
+	 * Returns the shortest range inside a field in the last scan.
+	 * @param field index of the field
+	 * @return range in mm, -1 if no beam was in the field
+	 */
+	public int getClosestRange(int field) {
+		return closest[field];
+	}
+
+	public SafetyField getField(int field) {
+		return fields[field];
+	}
+
+	public int getFieldCount() {
+		return fields.length;
+	}
+
+	/**
+	 * Forgets the debounce history; all fields return to free without being
+	 * reported.
+	 */
+	public void reset() {
+		for(int f = 0; f < fields.length; f++) {
+			violated[f] = false;
+			hitRun[f] = 0;
+			clearRun[f] = 0;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package lidar;
+
+/**
+ * Receives changes of safety field states from a {@link FieldEvaluator}.
+ */
+public interface FieldListener {
+	/**
+	 * Called on the thread that evaluated the scan, right after the scan that
+	 * changed the state.  Implementations should return quickly, the next
+	 * field of the same scan is evaluated after they return.
+	 *
+	 * @param field the field
+	 * @param violated true if the field became violated, false if it cleared
+	 * @param scan the scan that caused the change
+	 */
+	void fieldChanged(SafetyField field, boolean violated, ScanData scan);
+}
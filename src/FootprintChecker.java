@@ -0,0 +1,230 @@
+package lidar;
+
+/**
+ * Collision checking of the rover footprint against the points of a scan.
+ *
+ * The footprint is a convex polygon in the robot frame (x forward, y left,
+ * mm), stored as the half planes of its edges so that a point test is a few
+ * multiply-adds.  Each scan is projected once into the robot frame and
+ * bucketed into a spatial hash; checking a candidate pose only looks at the
+ * buckets under the footprint's bounding circle at that pose.  This makes it
+ * cheap to check every sample of hundreds of candidate trajectories against
+ * the same scan.
+ *
+ * Candidate poses are given in the robot frame of the scan, i.e. relative to
+ * where the robot was when the scan was taken.  Instances are not thread
+ * safe; use one per thread when checking trajectories in parallel.
+ */
+public class FootprintChecker {
+	private static final int MIN_BUCKETS = 1024;
+
+	/* footprint, robot frame */
+	private final float[] vertexX;
+	private final float[] vertexY;
+	private final float[] normalX;
+	private final float[] normalY;
+	private final float[] offset;
+	private final float centerX;
+	private final float centerY;
+	private final float radius;
+
+	/* scan points, robot frame */
+	private float[] pointX = new float[0];
+	private float[] pointY = new float[0];
+	private int points;
+	private final SpatialHash hash;
+
+	private BeamGeometry geometry;
+
+	/**
+	 * Creates a checker for a convex footprint.
+	 *
+	 * @param x vertex x coordinates in mm, robot frame, counter-clockwise
+	 * @param y vertex y coordinates in mm
+	 * @param margin extra clearance in mm added around the footprint
+	 */
+	public FootprintChecker(double[] x, double[] y, double margin) {
+		final int n = x.length;
+		if(n < 3 || y.length != n) throw new IllegalArgumentException("need at least 3 vertices");
+
+		vertexX = new float[n];
+		vertexY = new float[n];
+		normalX = new float[n];
+		normalY = new float[n];
+		offset = new float[n];
+
+		double cx = 0, cy = 0;
+		for(int i = 0; i < n; i++) {
+			vertexX[i] = (float) x[i];
+			vertexY[i] = (float) y[i];
+			cx += x[i];
+			cy += y[i];
+		}
+		cx /= n;
+		cy /= n;
+
+		/* outward normals of a counter-clockwise polygon */
+		for(int i = 0; i < n; i++) {
+			int j = (i + 1) % n;
+			double ex = x[j] - x[i], ey = y[j] - y[i];
+			double len = Math.hypot(ex, ey);
+			if(len == 0) throw new IllegalArgumentException("duplicate vertex");
+			double nx = ey / len, ny = -ex / len;
+			if(nx * (cx - x[i]) + ny * (cy - y[i]) > 0)
+				throw new IllegalArgumentException("footprint must be convex and counter-clockwise");
+			normalX[i] = (float) nx;
+			normalY[i] = (float) ny;
+			offset[i] = (float) (nx * x[i] + ny * y[i] + margin);
+		}
+
+		/*
+		 * the margin moves the edges outward, which moves the corners farther
+		 * than the margin; bound the corners where neighbouring edges meet
+		 */
+		double r = 0;
+		for(int i = 0; i < n; i++) {
+			int h = (i + n - 1) % n;
+			double det = normalX[h] * normalY[i] - normalY[h] * normalX[i];
+			double px, py;
+			if(Math.abs(det) < 1e-9) {
+				/* edges in line, the corner moves straight out */
+				px = x[i] + margin * normalX[i];
+				py = y[i] + margin * normalY[i];
+			} else {
+				px = (offset[h] * normalY[i] - offset[i] * normalY[h]) / det;
+				py = (normalX[h] * offset[i] - normalX[i] * offset[h]) / det;
+			}
+			r = Math.max(r, Math.hypot(px - cx, py - cy));
+		}
+		centerX = (float) cx;
+		centerY = (float) cy;
+		/* a little slack against float rounding in the point test */
+		radius = (float) (r * 1.0001 + 1e-3);
+		hash = new SpatialHash(radius, MIN_BUCKETS);
+	}
+
+	/**
+	 * Creates a checker for a rectangular footprint.
+	 *
+	 * @param front distance from the robot origin to the front edge in mm
+	 * @param back distance from the robot origin to the back edge in mm
+	 * @param halfWidth half of the rover's width in mm
+	 * @param margin extra clearance in mm
+	 * @return the checker
+	 */
+	public static FootprintChecker rectangle(double front, double back, double halfWidth,
+			double margin) {
+		return new FootprintChecker(
+				new double[] { -back, front, front, -back },
+				new double[] { -halfWidth, -halfWidth, halfWidth, halfWidth },
+				margin);
+	}
+
+	/**
+	 * Loads a scan.  Its points are moved into the robot frame and hashed;
+	 * all following checks are made against them.
+	 *
+	 * @param scan the scan
+	 * @param mount sensor pose in the robot frame (mm, degrees)
+	 */
+	public void setScan(ScanData scan, Position mount) {
+		if(geometry == null || !geometry.matches(scan)) geometry = BeamGeometry.of(scan);
+
+		final int[] dist = scan.getDIST1();
+		final int beams = Math.min(dist.length, geometry.getCount());
+		if(pointX.length < beams) {
+			pointX = new float[beams];
+			pointY = new float[beams];
+		}
+
+		final double h = Math.toRadians(mount.heading);
+		final float c = (float) Math.cos(h), s = (float) Math.sin(h);
+		final float mx = (float) mount.x, my = (float) mount.y;
+
+		points = 0;
+		for(int i = 0; i < beams; i++) {
+			if(dist[i] <= 0) continue;
+			float lx = dist[i] * geometry.cos(i), ly = dist[i] * geometry.sin(i);
+			pointX[points] = mx + c * lx - s * ly;
+			pointY[points] = my + s * lx + c * ly;
+			points++;
+		}
+
+		hash.build(pointX, pointY, points);
+	}
+
+	/**
+	 * Checks a single pose.
+	 *
+	 * @param x robot x in mm, frame of the loaded scan
+	 * @param y robot y in mm
+	 * @param heading robot heading in radians
+	 * @return true if a scan point lies inside the footprint
+	 */
+	public boolean collides(double x, double y, double heading) {
+		final float c = (float) Math.cos(heading), s = (float) Math.sin(heading);
+		return collides((float) x, (float) y, c, s);
+	}
+
+	/**
+	 * Checks the samples of a trajectory in order.
+	 *
+	 * @param x robot x coordinates in mm, frame of the loaded scan
+	 * @param y robot y coordinates in mm
+	 * @param heading robot headings in radians
+	 * @param count number of samples
+	 * @return index of the first colliding sample, or -1 if all are free
+	 */
+	public int firstCollision(float[] x, float[] y, float[] heading, int count) {
+		for(int k = 0; k < count; k++) {
+			final float c = (float) Math.cos(heading[k]), s = (float) Math.sin(heading[k]);
+			if(collides(x[k], y[k], c, s)) return k;
+		}
+		return -1;
+	}
+
+	private boolean collides(float px, float py, float c, float s) {
+		/* center of the bounding circle at this pose */
+		final float bx = px + c * centerX - s * centerY;
+		final float by = py + s * centerX + c * centerY;
+		final float r2 = radius * radius;
+		final SpatialHash hash = this.hash;
+		final int x0 = hash.cell(bx - radius), x1 = hash.cell(bx + radius);
+		final int y0 = hash.cell(by - radius), y1 = hash.cell(by + radius);
+		final int n = offset.length;
+
+		for(int cy = y0; cy <= y1; cy++) {
+			for(int cx = x0; cx <= x1; cx++) {
+				int b = hash.bucket(cx, cy);
+				for(int k = hash.start(b), end = hash.end(b); k < end; k++) {
+					int i = hash.item(k);
+					float dx = pointX[i] - px, dy = pointY[i] - py;
+					float ex = pointX[i] - bx, ey = pointY[i] - by;
+					if(ex * ex + ey * ey > r2) continue;
+
+					/* into the footprint frame */
+					float fx = c * dx + s * dy, fy = -s * dx + c * dy;
+					boolean inside = true;
+					for(int e = 0; e < n; e++) {
+						if(normalX[e] * fx + normalY[e] * fy > offset[e]) {
+							inside = false;
+							break;
+						}
+					}
+					if(inside) return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** @return number of scan points loaded */
+	public int getPointCount() {
+		return points;
+	}
+
+	/** @return radius in mm of the circle around the footprint, margin included */
+	public float getRadius() {
+		return radius;
+	}
+}
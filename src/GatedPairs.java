@@ -0,0 +1,84 @@
+package lidar;
+
+import java.util.Arrays;
+
+/**
+ * Measurement-track pairs that passed a gate, for assignment nearest first.
+ *
+ * Trackers add every gated pair with its distance, sort and then walk the
+ * pairs in order, taking a pair when neither its measurement nor its track
+ * has been taken yet.  The result does not depend on the order of the
+ * measurements or tracks.  Sorting is an in place heap sort on one long per
+ * pair, distance bits in the high word and pair index in the low word; the
+ * arrays grow on demand and are reused.
+ */
+final class GatedPairs {
+	private int[] measurement = new int[0];
+	private int[] track = new int[0];
+	private long[] key = new long[0];
+	private int count;
+
+	void clear() {
+		count = 0;
+	}
+
+	/**
+	 * @param m measurement index
+	 * @param t track slot
+	 * @param distance gating distance, not negative
+	 */
+	void add(int m, int t, float distance) {
+		if(count == key.length) grow();
+		measurement[count] = m;
+		track[count] = t;
+		/* distances are not negative, so their bits order like ints */
+		key[count] = (long) Float.floatToIntBits(distance) << 32 | count;
+		count++;
+	}
+
+	/** Sorts the pairs nearest first. */
+	void sort() {
+		for(int i = count / 2 - 1; i >= 0; i--) siftDown(i, count);
+		for(int end = count - 1; end > 0; end--) {
+			final long top = key[0];
+			key[0] = key[end];
+			key[end] = top;
+			siftDown(0, end);
+		}
+	}
+
+	/** @return number of pairs */
+	int size() {
+		return count;
+	}
+
+	/** @return measurement of the k-th pair, nearest first after sort() */
+	int measurement(int k) {
+		return measurement[(int) key[k]];
+	}
+
+	/** @return track slot of the k-th pair, nearest first after sort() */
+	int track(int k) {
+		return track[(int) key[k]];
+	}
+
+	private void grow() {
+		final int n = Math.max(64, 2 * key.length);
+		measurement = Arrays.copyOf(measurement, n);
+		track = Arrays.copyOf(track, n);
+		key = Arrays.copyOf(key, n);
+	}
+
+	private void siftDown(int i, int n) {
+		final long v = key[i];
+		while(true) {
+			int c = 2 * i + 1;
+			if(c >= n) break;
+			if(c + 1 < n && key[c + 1] > key[c]) c++;
+			if(key[c] <= v) break;
+			key[i] = key[c];
+			i = c;
+		}
+		key[i] = v;
+	}
+}
@@ -1,13 +1,12 @@
 package lidar;
 
-import java.io.BufferedReader;
-
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -32,20 +31,74 @@ public class LMS111 {
 	private int userLevel = CLIENT_LEVEL;
 	private String userPassword = CLIENT_PASS;
 
+	/* commands without parameters, encoded once */
+	private static final Telegram SCAN_DATA = new Telegram("sRN LMDscandata");
+	private static final Telegram START_MEASURING = new Telegram("sMN LMCstartmeas");
+	private static final Telegram STOP_MEASURING = new Telegram("sMN LMCstopmeas");
+	private static final Telegram STATUS = new Telegram("sRN STlms");
+	private static final Telegram SCAN_CONFIG = new Telegram("sRN LMPscancfg");
+	private static final Telegram CONTAMINATION = new Telegram("sRN LCMstate");
+	private static final Telegram DEFAULT_SCAN_OUTPUT =
+			new Telegram("sWN LMDscandatacfg 03 00 1 1 0 00 00 0 0 0 0 +1");
+	private static final int MAX_COMMAND_LENGTH = 128;
+	/* a two echo scan with remission is about 12KB, leave ample room */
+	private static final int MAX_TELEGRAM = 64 * 1024;
+	/* stale replies skipped while waiting for the answer to a command */
+	private static final int MAX_STALE_REPLIES = 4;
+	private static final int DEFAULT_READ_TIMEOUT = 1000;
+
 	/* internal variables needed to make a connection over ethernet*/
 	private Socket socket;
-	private PrintWriter out;
-	private BufferedReader in;
+	/* cleared by disconnect() without the channel lock, read them once */
+	private volatile OutputStream out;
+	private volatile TelegramReader in;
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
 	private String hostname;
 	private int port;
+	/* held for a whole command/reply exchange, see request() */
+	private final ReentrantLock channel = new ReentrantLock();
+	/*
+	 * guards disconnect(); separate from channel so closing never waits for a
+	 * read in progress, which only returns once the socket is closed
+	 */
+	private final ReentrantLock lifecycle = new ReentrantLock();
+	/* reused for commands with parameters, only touched while holding channel */
+	private final Telegram command = new Telegram(MAX_COMMAND_LENGTH);
+	private Telegram accessMode;
 	
 	/*State variables*/
-	private boolean isConnected = false;
+	private volatile boolean isConnected = false;
 	private boolean isTempGood = true;
-
-	/* these values are fixed */
-	private static final int startAngle = -450000;
-	private static final int stopAngle = 2250000;
+	/* false for connections that only carry control traffic */
+	private boolean scanConnection = true;
+	/* optional second connection for health queries */
+	private ControlChannel control;
+	/* maps the device clock to host time and counts lost frames */
+	private final ClockSync clock = new ClockSync();
+
+	/** Echo filters, see configureEchoFilter() */
+	public static final int ECHO_FIRST = 0;
+	public static final int ECHO_ALL = 1;
+	public static final int ECHO_LAST = 2;
+
+	/** Limits of the scanned field in 1/10,000 degrees */
+	public static final int MIN_ANGLE = -450000;
+	public static final int MAX_ANGLE = 2250000;
+
+	/* output range and decimation, see configureOutputRange() */
+	private int startAngle = MIN_ANGLE;
+	private int stopAngle = MAX_ANGLE;
+	private int outputInterval = 1;
+
+	/* last accepted scan output settings, see configureScanOutput() */
+	private int outputChannel = 3;
+	private boolean remission = true;
+	private boolean resolution = true;
+	private int encoder = 0;
+	private boolean position = false;
+	private boolean deviceName = false;
+	private boolean comment = false;
+	private boolean time = false;
 
 	/**
 	 * Creates instance of LMS with the address DEFAULT_HOSTNAME:DEFAULT_PORT
@@ -68,6 +121,31 @@ public class LMS111 {
 	private void init(final String host, final int port){
 		this.port = port;
 		this.hostname = host;	
+		this.accessMode = new Telegram("sMN SetAccessMode "+ this.userLevel +" "+ this.userPassword);
+	}
+
+	/**
+	 * Returns the address this LMS111 connects to.
+	 * @return host name or ip address
+	 */
+	public String getHostname() {
+		return hostname;
+	}
+
+	/**
+	 * Returns the port this LMS111 connects to.
+	 * @return port number
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Reports whether a connection is currently open.
+	 * @return true if connected
+	 */
+	public boolean isConnected() {
+		return isConnected;
 	}
 	
 	/**
@@ -83,13 +161,16 @@ public class LMS111 {
 		}
 
 		Socket sock;
-		PrintWriter out;
-		BufferedReader in;
+		OutputStream out;
+		TelegramReader in;
 
 		try {
 			sock = new Socket(this.hostname, this.port);
-			out = new PrintWriter(sock.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+			/* commands are small and answered one at a time, don't delay them */
+			sock.setTcpNoDelay(true);
+			sock.setSoTimeout(readTimeout);
+			out = sock.getOutputStream();
+			in = new TelegramReader(sock.getInputStream(), MAX_TELEGRAM);
 		} catch (final UnknownHostException e) {
 			System.err.println("Connect Failed: Unknown Host");
 			e.printStackTrace();
@@ -104,12 +185,12 @@ public class LMS111 {
 		this.out = out;
 		this.in = in;
 		isConnected = true;
+		clock.reset();
 		
 		/* set user mode.  The default is "Authorized client" */
-		send("sMN SetAccessMode "+ this.userLevel +" "+ this.userPassword);
-		if(receive().equals("sAN SetAccessMode 1")){
-			this.send("sWN LMDscandatacfg 03 00 1 1 0 00 00 0 0 0 0 +1");
-			this.receive();
+		if("sAN SetAccessMode 1".equals(request(accessMode))){
+			if(scanConnection)
+				configureDefaultScanOutput();
 			return true;
 		} else {
 			System.err.println("Connected, but could not change user-level.");
@@ -123,31 +204,36 @@ public class LMS111 {
 	 * 			false if it was never connected or if LMS111 cannot be reached.
 	 */
 	public boolean disconnect () {
-		if(!isConnected) {
-			System.err.println("This LMS111 is already disconnected.");
-			return false;
-		}
+		lifecycle.lock();
+		try {
+			if(!isConnected) {
+				System.err.println("This LMS111 is already disconnected.");
+				return false;
+			}
 
-		if(this.in != null) {
-			try {
-				this.in.close();
-			} catch (final IOException e) {}
-		}
+			/* cleared first so a read failing on the closed socket stays quiet */
+			isConnected = false;
+			closeControlChannel();
 
-		if(this.out != null)
-			this.out.close();
+			if(this.out != null) {
+				try {
+					this.out.close();
+				} catch (final IOException e) {}
+			}
 
-		if(this.socket != null) {
-			try {
-				this.socket.close();
-			} catch (final IOException e) {}
-		}
+			if(this.socket != null) {
+				try {
+					this.socket.close();
+				} catch (final IOException e) {}
+			}
 
-		this.in = null;
-		this.out = null;
-		this.socket = null;
-		isConnected = false;
-		return true;
+			this.in = null;
+			this.out = null;
+			this.socket = null;
+			return true;
+		} finally {
+			lifecycle.unlock();
+		}
 	}
 
 	/**
@@ -156,10 +242,8 @@ public class LMS111 {
 	 * @return true on successful start of measuring, false otherwise
 	 */
 	public boolean startMeasuring() {
-		final String command = "sMN LMCstartmeas";
-		send(command);
-
-		final String[] response = parseResponse(receive());
+		final String[] response = parseResponse(request(START_MEASURING), 3);
+		if(response == null) return false;
 		final int error = Integer.parseInt(response[2]);
 
 		return (error == 0);
@@ -170,10 +254,8 @@ public class LMS111 {
 	 * @return true on successful stop of measuring, false otherwise
 	 */
 	public boolean stopMeasuring() {
-		final String command = "sMN LMCstopmeas";
-		send(command);
-
-		final String[] response = parseResponse(receive());
+		final String[] response = parseResponse(request(STOP_MEASURING), 3);
+		if(response == null) return false;
 		final int error = Integer.parseInt(response[2],16);
 
 		return !(error == 1);
@@ -181,54 +263,134 @@ public class LMS111 {
 	
 	/**
 	 * Gets the latest scan from the connected LMS11 in the form of a ScanData.
+	 * The scan is stamped with its reception time and, once the clock model
+	 * has samples, its estimated acquisition time (see {@link #getClockSync()}).
 	 * @return Null on error, latest available scan information on success.
 	 */
 	public ScanData getScan() {
 		String str = getRawScan();
 		if(str == null) return null;
+		final long received = System.nanoTime();
 		
 		try {
-			return new ScanData(str);
+			final ScanData scan = new ScanData(str);
+			clock.update(scan, received);
+			return scan;
 		} catch (Exception e) {
 			return null;
 		}
 	}
 
+	/**
+	 * Returns the clock model of this unit, which also counts lost telegrams
+	 * and missed scans.
+	 * @return the clock model
+	 */
+	public ClockSync getClockSync() {
+		return clock;
+	}
+
 	/**
 	 * Get the raw string version of the scan directly from the LMS111.
 	 * @return
 	 */
 	public String getRawScan(){
-		send("sRN LMDscandata");
-		return receive();
+		return request(SCAN_DATA);
+	}
+
+	/**
+	 * Opens a second connection to the unit for control and health queries
+	 * and starts polling the unit's status on it.  While it is open,
+	 * {@link #queryStatus()}, {@link #isTempGood()},
+	 * {@link #getContaminationLevel()} and {@link #readStatus()} use it, so
+	 * they no longer delay scans on this connection.
+	 *
+	 * @param controlPort CoLa A port for the control connection
+	 * @param periodMillis delay between status polls
+	 * @return true if the control connection was opened
+	 */
+	public boolean openControlChannel(final int controlPort, final long periodMillis) {
+		if(control != null) {
+			System.err.println("Control channel is already open.");
+			return false;
+		}
+		final ControlChannel channel = new ControlChannel(this.hostname, controlPort,
+				periodMillis);
+		if(!channel.open()) {
+			System.err.println("Could not open control channel.");
+			return false;
+		}
+		control = channel;
+		return true;
+	}
+
+	/**
+	 * Closes the control connection, if open.  Health queries go back to
+	 * this connection.
+	 */
+	public void closeControlChannel() {
+		final ControlChannel channel = control;
+		control = null;
+		if(channel != null) channel.close();
+	}
+
+	/**
+	 * Returns the control channel opened by {@link #openControlChannel}.
+	 * @return the channel, null if none is open
+	 */
+	public ControlChannel getControlChannel() {
+		return control;
+	}
+
+	/**
+	 * Returns the status last polled on the control channel.  Unlike
+	 * {@link #readStatus()} this never contacts the unit.
+	 *
+	 * @return latest status, null without control channel or before the
+	 * 			first poll
+	 */
+	public SensorStatus getLatestStatus() {
+		final ControlChannel channel = control;
+		return channel == null ? null : channel.getStatus();
+	}
+
+	/* marks a connection that must leave the scan output configuration alone */
+	void setScanConnection(final boolean scanConnection) {
+		this.scanConnection = scanConnection;
 	}
 
 	/**
 	 * Queries the status of LMS
 	 * @return the status according to the documentation.  See page 86.
+	 * 			null if the unit did not answer.
 	 */
 	public String[] queryStatus () {
-		final String command = "sRN STlms";
-		send(command);
-		return parseResponse(receive());
+		final ControlChannel channel = control;
+		if(channel != null) return channel.getLMS111().queryStatus();
+
+		return parseResponse(request(STATUS), 4);
 	}
 
 	/**
 	 * Reports the operating status code.
 	 *
-	 * @return 	operating status code
+	 * @return 	operating status code, -1 if the unit did not answer
 	 */
 	public int getStatusCode() {
-		return Integer.parseInt(queryStatus()[2],16);
+		final String[] status = queryStatus();
+		if(status == null) return -1;
+		return Integer.parseInt(status[2],16);
 	}
 
 	/**
 	 * Reports if temperature of unit is in operating range.
 	 * @return 	true if operating temp range is met
-	 * 			false otherwise
+	 * 			false otherwise, or if the unit did not answer
 	 */
 	public boolean isTempGood () {
-		isTempGood = (Integer.parseInt(queryStatus()[3],16) == 0);
+		final String[] status = queryStatus();
+		if(status == null) return false;
+		isTempGood = (Integer.parseInt(status[3],16) == 0);
 		return isTempGood;
 	}
 
@@ -237,13 +399,11 @@ public class LMS111 {
 	 * case that the value of the scanning frequency is less than or equal to
 	 * that of the angular resolution.
 	 *
-	 * @return 2500(25hz) or 5000(50hz).
+	 * @return 2500(25hz) or 5000(50hz), -1 on error.
 	 */
 	public int getScanFreq() {
-		final String command = "sRN LMPscancfg";
-		send(command);
-
-		final String[] response = parseResponse(receive());
+		final String[] response = parseResponse(request(SCAN_CONFIG), 3);
+		if(response == null) return -1;
 		final int freq = Integer.parseInt(response[2],16);
 
 		if(!(freq == 2500 || freq == 5000)) {
@@ -259,13 +419,11 @@ public class LMS111 {
 	 * always the case that the value of the scanning frequency is greater than
 	 * or equal to that of the scanning frequency.
 	 *
-	 * @return 2500(.25 degrees) or 5000(.50 degrees)
+	 * @return 2500(.25 degrees) or 5000(.50 degrees), -1 on error
 	 */
 	public int getAngularRes() {
-		final String command = "sRN LMPscancfg";
-		send(command);
-
-		final String[] response = parseResponse(receive());
+		final String[] response = parseResponse(request(SCAN_CONFIG), 5);
+		if(response == null) return -1;
 		final int angularRes = Integer.parseInt(response[4],16);
 
 		if(!(angularRes == 2500 || angularRes == 5000)) {
@@ -277,31 +435,67 @@ public class LMS111 {
 	}
 
 	/**
-	 * Returns the starting angle -450000
-	 * @return -4500000
+	 * Returns the angle of the first beam sent, -450000 unless the output
+	 * range was limited with configureOutputRange().
+	 * @return start angle in 1/10,000 degrees
 	 */
 	public int getStartAngle() {
 		return startAngle;
 	}
 
 	/**
-	 * Returns the stopping angle +2250000
-	 * @return 22500000
+	 * Returns the angle of the last beam sent, +2250000 unless the output
+	 * range was limited with configureOutputRange().
+	 * @return stop angle in 1/10,000 degrees
 	 */
 	public int getStopAngle() {
 		return stopAngle;
 	}
 
+	/**
+	 * Returns how many scans the device makes per scan it sends.
+	 * @return output interval, 1 for every scan
+	 */
+	public int getOutputInterval() {
+		return outputInterval;
+	}
+
+	/**
+	 * Reads the contamination level of the front screen.
+	 * @return contamination level, -1 if the unit did not answer
+	 */
 	public int getContaminationLevel() {
-		final String command = "sRN LCMstate";
-		send(command);
+		final ControlChannel channel = control;
+		if(channel != null) return channel.getLMS111().getContaminationLevel();
 
-		final String[] response = parseResponse(receive());
+		final String[] response = parseResponse(request(CONTAMINATION), 3);
+		if(response == null) return -1;
 		final int contamLevel = Integer.parseInt(response[2],16);
 
 		return contamLevel;
 	}
 	
+	/**
+	 * Reads the operating status, temperature flag and contamination level
+	 * in one go.
+	 *
+	 * @return a snapshot of the unit's health, null if it could not be read
+	 */
+	public SensorStatus readStatus() {
+		try {
+			final String[] status = queryStatus();
+			if(status == null) return null;
+			final int statusCode = Integer.parseInt(status[2],16);
+			isTempGood = (Integer.parseInt(status[3],16) == 0);
+			final int contamLevel = getContaminationLevel();
+			if(contamLevel < 0) return null;
+			return new SensorStatus(statusCode, isTempGood, contamLevel,
+					System.nanoTime());
+		} catch (final RuntimeException e) {
+			return null;
+		}
+	}
+
 	/**
 	 * Reports whether or not the unit is ready to scan
 	 *
@@ -319,17 +513,29 @@ public class LMS111 {
 	 * @return
 	 */
 	public boolean configureLaser(final int scanFreq, final int angleRes){
-		final String cmd = 	"sMN mLMPsetscancfg " +
-						formatInteger(scanFreq) +
-						" +1 " + formatInteger(angleRes) +
-						" " + formatInteger(startAngle) +
-						" " + formatInteger(stopAngle);
-
-		send(cmd);
-		final String[] response = parseResponse(receive());
+		final String[] response;
+		channel.lock();
+		try {
+			command.begin("sMN mLMPsetscancfg")
+					.appendSigned(scanFreq)
+					.append(" +1")
+					.appendSigned(angleRes)
+					.appendSigned(MIN_ANGLE)
+					.appendSigned(MAX_ANGLE)
+					.end();
+			response = parseResponse(request(command), 3);
+		} finally {
+			channel.unlock();
+		}
+		if(response == null) return false;
 
 		/* error returned by LMS */
 		final int error = Integer.parseInt(response[2],16);
+		if(error == 0) {
+			/* the command also sets the output range to the full field */
+			startAngle = MIN_ANGLE;
+			stopAngle = MAX_ANGLE;
+		}
 		String errorMessage = "";
 
 		if(error != 0){
@@ -348,16 +554,100 @@ public class LMS111 {
 	}
 
 	/**
-	 * Default values for configureScanOutput method.
+	 * Limits the part of the field that is sent with each scan.  Beams
+	 * outside the range are neither transferred nor parsed, so network and
+	 * parse cost shrink in proportion.  Scans report the new layout through
+	 * ScanData.getStartAngle() and ScanData.getBeamCount().
+	 *
+	 * @param angleRes angular resolution in 1/10,000 degrees, must match the
+	 * 			resolution set with configureLaser()
+	 * @param startAngle first angle in 1/10,000 degrees, at least -450000
+	 * @param stopAngle last angle in 1/10,000 degrees, at most +2250000
+	 * @return true if the device accepted the range
+	 */
+	public boolean configureOutputRange(final int angleRes, final int startAngle,
+			final int stopAngle) {
+		if(startAngle < MIN_ANGLE || stopAngle > MAX_ANGLE || startAngle >= stopAngle)
+			throw new IllegalArgumentException("invalid output range");
+
+		String response;
+		channel.lock();
+		try {
+			command.begin("sWN LMPoutputRange 1")
+					.appendSigned(angleRes)
+					.appendSigned(startAngle)
+					.appendSigned(stopAngle)
+					.end();
+			response = request(command);
+		} finally {
+			channel.unlock();
+		}
+
+		if(!"sWA LMPoutputRange".equals(response)) return false;
+
+		this.startAngle = startAngle;
+		this.stopAngle = stopAngle;
+		return true;
+	}
+
+	/**
+	 * Sends only every n-th scan.  Cuts the scan rate, and with it network
+	 * and parse load, by the given factor.  The other scan output settings,
+	 * such as the encoder block, stay as last set with configureScanOutput().
+	 *
+	 * @param outputInterval 1 for every scan, n for every n-th scan
+	 * @return true if the device accepted the setting
+	 */
+	public boolean configureOutputInterval(final int outputInterval) {
+		if(outputInterval < 1) throw new IllegalArgumentException("invalid output interval");
+		return configureScanOutput(outputChannel, remission, resolution, encoder, position,
+				deviceName, comment, time, outputInterval);
+	}
+
+	/**
+	 * Selects which echoes of each beam are sent.  With ECHO_ALL the first
+	 * echo is reported in DIST1/RSSI1 and the second in DIST2/RSSI2, which
+	 * lets EchoFusion see through rain, dust and glass.
+	 *
+	 * @param filter ECHO_FIRST, ECHO_ALL or ECHO_LAST
+	 * @return true if the device accepted the filter
+	 */
+	public boolean configureEchoFilter(final int filter) {
+		if(filter < ECHO_FIRST || filter > ECHO_LAST)
+			throw new IllegalArgumentException("invalid echo filter");
+
+		String response;
+		channel.lock();
+		try {
+			command.begin("sWN FREchoFilter").appendUnsigned(filter).end();
+			response = request(command);
+		} finally {
+			channel.unlock();
+		}
+
+		return "sWA FREchoFilter".equals(response);
+	}
+
+	/**
+	 * Default values for configureScanOutput method.  Also sent by
+	 * connect(), so the remembered settings are reset there too.
 	 * @return
 	 */
 	public boolean configureDefaultScanOutput() {
 		String response;
-		final String command = "sWN LMDscandatacfg 03 00 1 1 0 00 00 0 0 0 0 +1";
-		send(command);
-		response = receive();
-		if(response.equals("sWA LMDscandatacfg"))
+		response = request(DEFAULT_SCAN_OUTPUT);
+		if("sWA LMDscandatacfg".equals(response)) {
+			outputChannel = 3;
+			remission = true;
+			resolution = true;
+			encoder = 0;
+			position = false;
+			deviceName = false;
+			comment = false;
+			time = false;
+			outputInterval = 1;
 			return true;
+		}
 		return false;
 	}
 
@@ -381,115 +671,158 @@ public class LMS111 {
 										final boolean time,
 										final int outputInterval) {
 		String response;
-		/* packing command */
-		String cmd = 	"sWN LMDscandatacfg " +
-
-		/* not sure what "10 FF reserved" in v2 documentaiton is for */
-		formatInteger(outputChannel) + " 00 ";
-
-		if (remission) 	cmd += "+1 "; else cmd += "0 ";
-		if (resolution) cmd += "1 "; else cmd += "0 ";
-		/* encoder */	cmd += formatInteger(encoder) + " 00 ";
-		if (position) 	cmd += "1 "; else cmd += "0 ";
-		if (deviceName) cmd += "1 "; else cmd += "0 ";
-		if (comment) 	cmd += "1 "; else cmd += "0 ";
-		if (time) 		cmd += "1 "; else cmd += "0 ";
-  	/*outputInterval*/	cmd += formatInteger(outputInterval);
-
-		send(cmd);
-
-		response = receive();
-
-		if(!response.equals("sWA LMDscandatacfg")) return false;
+		channel.lock();
+		try {
+			/* packing command in place */
+			command.begin("sWN LMDscandatacfg")
+
+			/* not sure what "10 FF reserved" in v2 documentaiton is for */
+			.appendSigned(outputChannel).append(" 00");
+
+			command.append(remission ? " +1" : " 0");
+			command.append(resolution ? " 1" : " 0");
+			/* encoder */	command.appendSigned(encoder).append(" 00");
+			command.append(position ? " 1" : " 0");
+			command.append(deviceName ? " 1" : " 0");
+			command.append(comment ? " 1" : " 0");
+			command.append(time ? " 1" : " 0");
+			/*outputInterval*/	command.appendSigned(outputInterval).end();
+
+			response = request(command);
+		} finally {
+			channel.unlock();
+		}
 
+		if(!"sWA LMDscandatacfg".equals(response)) return false;
+
+		this.outputChannel = outputChannel;
+		this.remission = remission;
+		this.resolution = resolution;
+		this.encoder = encoder;
+		this.position = position;
+		this.deviceName = deviceName;
+		this.comment = comment;
+		this.time = time;
+		this.outputInterval = outputInterval;
 		return true;
 	}
+	/**
+	 * Sends a command and waits for its reply.  The exchange holds the channel
+	 * lock so that several threads sharing this LMS111 (scan reader, health
+	 * polling, configuration) never interleave their telegrams.  A lock is
+	 * used rather than synchronized so virtual threads don't pin their carrier
+	 * while blocked on the socket.
+	 *
+	 * @param cmd message to be sent.
+	 * @return the reply, null if not connected.
+	 */
+	private String request (final Telegram cmd) {
+		channel.lock();
+		try {
+			if(!send(cmd)) return null;
+			return receive(cmd);
+		} finally {
+			channel.unlock();
+		}
+	}
+
 	/**
 	 * Sends a message to LMS according to the specification.  This method
-	 * should only be used internally.
+	 * should only be used internally.  The telegram is already framed and
+	 * encoded, so it goes out in a single write on the unbuffered socket
+	 * stream.
 	 *
 	 * @param cmd message to be sent.
 	 */
-	private boolean send (final String cmd) {
-		if(!isConnected) {
+	private boolean send (final Telegram cmd) {
+		final OutputStream stream = this.out;
+		if(!isConnected || stream == null) {
 			System.err.println("LMS111 is not connected!");
 			return false;
 		}
-		
-		this.out.write(0x02);
-		for(int i = 0; i < cmd.length(); i++)
-			this.out.write(cmd.charAt(i));
-		this.out.write(0x03);
-		this.out.write(0x00);
-		this.out.flush();
+
+		try {
+			stream.write(cmd.array(), 0, cmd.length());
+		} catch (final IOException e) {
+			if(isConnected) {
+				System.err.println("Send Failed: I/O Error");
+				e.printStackTrace();
+			}
+			return false;
+		}
 		return true;
 	}
 
 	/**
-	 * Retrieves a message from LMS.  This method should only be used internally
+	 * Retrieves the reply to a command from LMS.  Replies left over from
+	 * earlier commands that timed out are skipped.  This method should only
+	 * be used internally
 	 *
-	 * @return message from the LMS.
+	 * @param cmd the command whose reply is expected.
+	 * @return message from the LMS, null on timeout or error.
 	 */
-	private String receive() {
-		if(!isConnected) {
+	private String receive(final Telegram cmd) {
+		final TelegramReader reader = this.in;
+		if(!isConnected || reader == null) {
 			System.err.println("LMS111 is not connected!");
 			return null;
 		}
-		
-		final StringBuffer buf = new StringBuffer();
-		int c = 0;
 
-		/*Find STX*/
-		do
-			try {
-				c = this.in.read();
-			} catch (final IOException e) {
-				e.printStackTrace();
+		try {
+			for(int i = 0; i <= MAX_STALE_REPLIES; i++) {
+				final int len = reader.read(readTimeout);
+				if(len < 0) return null;
+				if(cmd.isAnsweredBy(reader.getFrame(), len))
+					return new String(reader.getFrame(), 0, len,
+							StandardCharsets.US_ASCII);
 			}
-		while (c == 0);
-
-		/*Read in message*/
-		while(true){
-			/*Read in character*/
-			try {
-				c = this.in.read();
-			} catch (final IOException e) {
+			System.err.println("No reply to " + cmd);
+		} catch (final IOException e) {
+			if(isConnected) {
+				System.err.println("Receive Failed: I/O Error");
 				e.printStackTrace();
+				/* the stream is unusable, let callers see the lost connection */
+				disconnect();
 			}
-
-			/*End of stream*/
-			if(c == -1)
-				break;
-
-			/*Append character if not an ETX*/
-			if(c == 0x03)
-				break;
-			else
-				buf.append((char)c);
 		}
-		return buf.toString();
+		return null;
 	}
 
 	/**
-	 * Divides the messages into an array of strings.
-	 *
-	 * @param response a message received from LMS
-	 * @return an array of strings
+	 * Returns the frame reader of the current connection, whose counters show
+	 * timeouts, resynchronizations and discarded bytes.
+	 * @return the reader, null if not connected
 	 */
-	private static String[] parseResponse (final String response) {
-		return response.trim().split(" ");
+	public TelegramReader getTelegramReader() {
+		return in;
 	}
 
 	/**
-	 * Format signed integers.  Add + for positive non-hex integers in
-	 * accordance with the specification.
+	 * Sets how long to wait for a reply before giving up.
+	 * @param millis read timeout in milliseconds
+	 */
+	public void setReadTimeout(final int millis) {
+		if(millis <= 0) throw new IllegalArgumentException();
+		this.readTimeout = millis;
+		final Socket sock = this.socket;
+		if(sock != null) {
+			try {
+				sock.setSoTimeout(millis);
+			} catch (final IOException e) {}
+		}
+	}
+
+	/**
+	 * Divides the messages into an array of strings.
 	 *
-	 * @param num the integer to be formatted
-	 * @return string form of the number with "+" if positive.
+	 * @param response a message received from LMS, null after a timeout
+	 * @param fields number of fields the caller reads
+	 * @return an array of strings, null if there is no reply or it is too short
 	 */
-	private static String formatInteger(final int num){
-		if(num >= 0) return "+"+Integer.toString(num);
-		else return Integer.toString(num);
+	private static String[] parseResponse (final String response, final int fields) {
+		if(response == null) return null;
+		final String[] parts = response.trim().split(" ");
+		return parts.length < fields ? null : parts;
 	}
 
 
@@ -497,12 +830,13 @@ public class LMS111 {
 	 * Returns the date and time reported by the unit.
 	 * TODO: look into supposed deprecated date functions
 	 *
-	 * @return
+	 * @return the unit's date, null if the unit did not answer
 	 */
 	@Deprecated
 	public Date getUnitDate () {
 		String[] date=null, time=null;
 		final String[] status = queryStatus();
+		if(status == null || status.length < 8) return null;
 		time = status[5].split(":");
 		date = status[7].split("\\.");
 
@@ -0,0 +1,77 @@
+package lidar;
+
+/**
+ * A table of known landmark positions with a grid index for nearest
+ * neighbour queries.
+ *
+ * Landmarks are bucketed into square cells as large as the largest query
+ * radius, so a query looks at no more than the 3 x 3 cells around the query
+ * point.  The table is built once and never changes.
+ */
+public class LandmarkMap {
+	private final float[] x;
+	private final float[] y;
+	private final SpatialHash hash;
+
+	/**
+	 * Builds the index.
+	 *
+	 * @param x landmark x coordinates in mm, world frame
+	 * @param y landmark y coordinates in mm, world frame
+	 * @param maxQueryRadius largest radius passed to {@link #nearest}
+	 */
+	public LandmarkMap(double[] x, double[] y, double maxQueryRadius) {
+		if(x.length != y.length || maxQueryRadius <= 0) throw new IllegalArgumentException();
+		final int n = x.length;
+		this.x = new float[n];
+		this.y = new float[n];
+		for(int i = 0; i < n; i++) {
+			this.x[i] = (float) x[i];
+			this.y[i] = (float) y[i];
+		}
+		this.hash = new SpatialHash((float) maxQueryRadius, 32);
+		hash.build(this.x, this.y, n);
+	}
+
+	/**
+	 * Finds the landmark nearest to a point.
+	 *
+	 * @param px x in mm, world frame
+	 * @param py y in mm, world frame
+	 * @param radius largest distance in mm, at most the radius given when
+	 * 			the map was built
+	 * @return index of the landmark, -1 if none is within the radius
+	 */
+	public int nearest(float px, float py, float radius) {
+		final int cx = hash.cell(px), cy = hash.cell(py);
+		float best = radius * radius;
+		int found = -1;
+		for(int dy = -1; dy <= 1; dy++) {
+			for(int dx = -1; dx <= 1; dx++) {
+				int b = hash.bucket(cx + dx, cy + dy);
+				for(int k = hash.start(b), end = hash.end(b); k < end; k++) {
+					int i = hash.item(k);
+					float ex = x[i] - px, ey = y[i] - py;
+					float d = ex * ex + ey * ey;
+					if(d <= best) {
+						best = d;
+						found = i;
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	public int size() {
+		return x.length;
+	}
+
+	public float getX(int landmark) {
+		return x[landmark];
+	}
+
+	public float getY(int landmark) {
+		return y[landmark];
+	}
+}
@@ -0,0 +1,150 @@
+package lidar;
+
+/**
+ * Precomputed measurement model for matching scan endpoints against a map.
+ *
+ * For every cell the distance to the nearest occupied cell is computed once
+ * with an exact Euclidean distance transform.  It is turned into the log
+ * likelihood of a beam ending in that cell: a Gaussian in the distance,
+ * mixed with a uniform term for unexplained returns.  Scoring an endpoint is
+ * then a single array lookup.
+ */
+public class LikelihoodField {
+	private static final float FAR = 1e20f;
+
+	private final OccupancyGrid map;
+	private final float[] distance;
+	private final float[] logLikelihood;
+	private final float outside;
+
+	/**
+	 * Builds the field for a map.
+	 *
+	 * @param map the map; occupied cells are obstacles
+	 * @param sigma standard deviation of the range error in mm
+	 * @param maxDistance distances are clamped to this many mm
+	 * @param randomWeight share of returns not explained by the map, (0, 1)
+	 */
+	public LikelihoodField(OccupancyGrid map, double sigma, double maxDistance,
+			double randomWeight) {
+		if(sigma <= 0 || randomWeight <= 0 || randomWeight >= 1)
+			throw new IllegalArgumentException();
+		this.map = map;
+
+		final int n = map.getWidth() * map.getHeight();
+		final double res = map.getResolution();
+		this.distance = distanceTransform(map);
+		this.logLikelihood = new float[n];
+
+		final double hit = 1.0 - randomWeight;
+		final double twoSigma2 = 2.0 * sigma * sigma;
+		for(int i = 0; i < n; i++) {
+			double d = Math.min(Math.sqrt(distance[i]) * res, maxDistance);
+			distance[i] = (float) d;
+			logLikelihood[i] = (float) Math.log(hit * Math.exp(-d * d / twoSigma2)
+					+ randomWeight);
+		}
+		this.outside = (float) Math.log(randomWeight);
+	}
+
+	/**
+	 * Returns the log likelihood of a beam ending at a world point.
+	 * @param x world x in mm
+	 * @param y world y in mm
+	 * @return log likelihood, {@link #getOutside()} outside the map
+	 */
+	public float logLikelihood(double x, double y) {
+		int cx = map.toCellX(x), cy = map.toCellY(y);
+		if(!map.contains(cx, cy)) return outside;
+		return logLikelihood[cy * map.getWidth() + cx];
+	}
+
+	/**
+	 * Returns the table of log likelihoods, laid out like the map's cells.
+	 * @return per cell log likelihood
+	 */
+	public float[] getLogLikelihoods() {
+		return logLikelihood;
+	}
+
+	/**
+	 * Returns the distance from each cell to the nearest obstacle, laid out
+	 * like the map's cells.
+	 * @return per cell distance in mm, clamped to the maximum distance
+	 */
+	public float[] getDistances() {
+		return distance;
+	}
+
+	/** @return log likelihood used for endpoints outside the map */
+	public float getOutside() {
+		return outside;
+	}
+
+	public OccupancyGrid getMap() {
+		return map;
+	}
+
+	/**
+	 * Computes the squared distance, in cells, from every cell to the nearest
+	 * occupied cell (Felzenszwalb and Huttenlocher, separable in x and y).
+	 *
+	 * @param map the map
+	 * @return squared distances laid out like the map's cells
+	 */
+	public static float[] distanceTransform(OccupancyGrid map) {
+		final int w = map.getWidth(), h = map.getHeight();
+		final float[] grid = new float[w * h];
+		final byte[] cells = map.getCells();
+		for(int i = 0; i < grid.length; i++)
+			grid[i] = cells[i] >= OccupancyGrid.OCCUPIED_THRESHOLD ? 0 : FAR;
+
+		final int len = Math.max(w, h);
+		final float[] f = new float[len];
+		final float[] d = new float[len];
+		final int[] v = new int[len];
+		final float[] z = new float[len + 1];
+
+		/* columns */
+		for(int x = 0; x < w; x++) {
+			for(int y = 0; y < h; y++) f[y] = grid[y * w + x];
+			transform1d(f, h, d, v, z);
+			for(int y = 0; y < h; y++) grid[y * w + x] = d[y];
+		}
+		/* rows */
+		for(int y = 0; y < h; y++) {
+			System.arraycopy(grid, y * w, f, 0, w);
+			transform1d(f, w, d, v, z);
+			System.arraycopy(d, 0, grid, y * w, w);
+		}
+		return grid;
+	}
+
+	/* lower envelope of parabolas rooted at f */
+	private static void transform1d(float[] f, int n, float[] d, int[] v, float[] z) {
+		int k = 0;
+		v[0] = 0;
+		z[0] = -Float.MAX_VALUE;
+		z[1] = Float.MAX_VALUE;
+		for(int q = 1; q < n; q++) {
+			float s;
+			while(true) {
+				int p = v[k];
+				s = ((f[q] + (float) q * q) - (f[p] + (float) p * p)) / (2f * q - 2f * p);
+				/* z[0] is minus infinity, so this ends at k == 0 at the latest */
+				if(s > z[k]) break;
+				k--;
+			}
+			k++;
+			v[k] = q;
+			z[k] = s;
+			z[k + 1] = Float.MAX_VALUE;
+		}
+		k = 0;
+		for(int q = 0; q < n; q++) {
+			while(z[k + 1] < q) k++;
+			float dq = q - v[k];
+			d[q] = dq * dq + f[v[k]];
+		}
+	}
+}
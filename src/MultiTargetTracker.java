@@ -0,0 +1,282 @@
+package lidar;
+
+/**
+ * Follows many moving objects from scan to scan with Kalman filters.
+ *
+ * Each track is a constant velocity filter of position and velocity.  With
+ * the same noise on both axes and no coupling between them, the covariance
+ * is the same 2 x 2 matrix for x and y, so a track needs three covariance
+ * values.  Tracks live in parallel primitive arrays with a stack of free
+ * slots; nothing is allocated per scan.
+ *
+ * To associate measurements the predicted track positions are bucketed into
+ * a spatial hash with cells as large as the gate.  A measurement only looks
+ * at the tracks in the 3 x 3 cells around it, so gating costs about the same
+ * per measurement no matter how many tracks there are.  All gated pairs are
+ * then sorted by Mahalanobis distance and assigned nearest first, each
+ * measurement and track at most once (see {@link GatedPairs}), so the result
+ * does not depend on the order of the measurements.
+ *
+ * Unmatched measurements open tentative tracks, which are confirmed after a
+ * number of hits.  Tracks are deleted after a number of scans without a
+ * measurement; tentative tracks on their first miss.
+ *
+ * Positions are in mm and velocities in mm/s in whatever frame the
+ * measurements are given; use a fixed frame when the sensor moves.
+ */
+public class MultiTargetTracker {
+	private final int capacity;
+	private final float gate;
+	private final float gateChi2;
+	private final float accelNoise;
+	private final float measurementNoise;
+	private final float initialSpeedVariance;
+	private final int confirmHits;
+	private final int maxMissed;
+
+	/* tracks; id 0 marks a free slot */
+	private final int[] id;
+	private final float[] x;
+	private final float[] y;
+	private final float[] vx;
+	private final float[] vy;
+	/* covariance of one axis: position, position-velocity, velocity */
+	private final float[] pxx;
+	private final float[] pxv;
+	private final float[] pvv;
+	private final int[] hits;
+	private final int[] missed;
+	private final boolean[] matched;
+	private final int[] free;
+	private int freeCount;
+	private int live;
+	private int nextId = 1;
+
+	/* spatial hash over the predicted positions of the live slots */
+	private final SpatialHash hash;
+	private final int[] liveSlots;
+
+	/* per measurement result of the last update */
+	private int[] assignment = new int[0];
+
+	/* gated pairs of the current update */
+	private final GatedPairs pairs = new GatedPairs();
+
+	/**
+	 * Creates a tracker.
+	 *
+	 * @param capacity most tracks followed at once
+	 * @param gate largest distance in mm between a track and its measurement
+	 * @param gateSigma largest Mahalanobis distance of a match; a true match
+	 * 			falls outside with probability exp(-gateSigma^2 / 2)
+	 * @param accelNoise standard deviation of the acceleration in mm/s^2
+	 * @param measurementNoise standard deviation of a measurement in mm
+	 * @param initialSpeed standard deviation of the speed of new tracks in mm/s
+	 * @param confirmHits hits needed to confirm a track
+	 * @param maxMissed misses after which a confirmed track is dropped
+	 */
+	public MultiTargetTracker(int capacity, float gate, float gateSigma, float accelNoise,
+			float measurementNoise, float initialSpeed, int confirmHits, int maxMissed) {
+		if(capacity <= 0 || gate <= 0 || confirmHits < 1) throw new IllegalArgumentException();
+		this.capacity = capacity;
+		this.gate = gate;
+		this.gateChi2 = gateSigma * gateSigma;
+		this.accelNoise = accelNoise * accelNoise;
+		this.measurementNoise = measurementNoise * measurementNoise;
+		this.initialSpeedVariance = initialSpeed * initialSpeed;
+		this.confirmHits = confirmHits;
+		this.maxMissed = maxMissed;
+
+		id = new int[capacity];
+		x = new float[capacity];
+		y = new float[capacity];
+		vx = new float[capacity];
+		vy = new float[capacity];
+		pxx = new float[capacity];
+		pxv = new float[capacity];
+		pvv = new float[capacity];
+		hits = new int[capacity];
+		missed = new int[capacity];
+		matched = new boolean[capacity];
+		free = new int[capacity];
+		for(int i = 0; i < capacity; i++) free[i] = capacity - 1 - i;
+		freeCount = capacity;
+
+		hash = new SpatialHash(gate, Integer.highestOneBit(capacity) * 4);
+		liveSlots = new int[capacity];
+	}
+
+	/**
+	 * Advances all tracks and updates them with the measurements of a scan.
+	 *
+	 * @param mx measured x coordinates in mm, e.g. {@link ScanSegmenter#getX()}
+	 * @param my measured y coordinates in mm
+	 * @param count number of measurements
+	 * @param dt time since the previous update in seconds
+	 */
+	public void update(float[] mx, float[] my, int count, float dt) {
+		if(assignment.length < count) assignment = new int[Math.max(count, 2 * assignment.length)];
+		predict(dt);
+		index();
+
+		/* gate: every track near every measurement */
+		final float r = measurementNoise;
+		pairs.clear();
+		for(int m = 0; m < count; m++) {
+			assignment[m] = -1;
+			final int cx = hash.cell(mx[m]), cy = hash.cell(my[m]);
+			for(int dy = -1; dy <= 1; dy++) {
+				for(int dx = -1; dx <= 1; dx++) {
+					final int b = hash.bucket(cx + dx, cy + dy);
+					for(int k = hash.start(b), end = hash.end(b); k < end; k++) {
+						final int t = hash.item(k);
+						final float ex = mx[m] - x[t], ey = my[m] - y[t];
+						final float e2 = ex * ex + ey * ey;
+						if(e2 > gate * gate) continue;
+						final float d = e2 / (pxx[t] + r);
+						if(d >= gateChi2) continue;
+						pairs.add(m, t, d);
+					}
+				}
+			}
+		}
+
+		/* assign nearest first */
+		pairs.sort();
+		for(int k = 0; k < pairs.size(); k++) {
+			final int m = pairs.measurement(k), t = pairs.track(k);
+			if(assignment[m] >= 0 || matched[t]) continue;
+			correct(t, mx[m], my[m]);
+			assignment[m] = id[t];
+		}
+
+		/* births */
+		for(int m = 0; m < count; m++)
+			if(assignment[m] < 0) assignment[m] = open(mx[m], my[m]);
+
+		/* deaths */
+		for(int t = 0; t < capacity; t++) {
+			if(id[t] == 0 || matched[t]) continue;
+			missed[t]++;
+			if(hits[t] < confirmHits || missed[t] > maxMissed) close(t);
+		}
+	}
+
+	private void predict(float dt) {
+		final float dt2 = dt * dt, q = accelNoise;
+		for(int t = 0; t < capacity; t++) {
+			matched[t] = false;
+			if(id[t] == 0) continue;
+			x[t] += vx[t] * dt;
+			y[t] += vy[t] * dt;
+			/* P = F P F' + Q for one axis, white noise acceleration */
+			final float a = pxx[t], b = pxv[t], c = pvv[t];
+			pxx[t] = a + 2 * dt * b + dt2 * c + q * dt2 * dt2 / 4;
+			pxv[t] = b + dt * c + q * dt2 * dt / 2;
+			pvv[t] = c + q * dt2;
+		}
+	}
+
+	private void correct(int t, float mx, float my) {
+		final float s = pxx[t] + measurementNoise;
+		final float k1 = pxx[t] / s, k2 = pxv[t] / s;
+		final float ex = mx - x[t], ey = my - y[t];
+		x[t] += k1 * ex;
+		y[t] += k1 * ey;
+		vx[t] += k2 * ex;
+		vy[t] += k2 * ey;
+		final float b = pxv[t];
+		pvv[t] -= k2 * b;
+		pxv[t] = (1 - k1) * b;
+		pxx[t] = (1 - k1) * pxx[t];
+		hits[t]++;
+		missed[t] = 0;
+		matched[t] = true;
+	}
+
+	private void index() {
+		int n = 0;
+		for(int t = 0; t < capacity; t++)
+			if(id[t] != 0) liveSlots[n++] = t;
+		hash.build(x, y, liveSlots, n);
+	}
+
+	/* returns the id of the new track, 0 if there is no free slot */
+	private int open(float mx, float my) {
+		if(freeCount == 0) return 0;
+		final int t = free[--freeCount];
+		id[t] = nextId++;
+		if(nextId <= 0) nextId = 1;
+		x[t] = mx;
+		y[t] = my;
+		vx[t] = 0;
+		vy[t] = 0;
+		pxx[t] = measurementNoise;
+		pxv[t] = 0;
+		pvv[t] = initialSpeedVariance;
+		hits[t] = 1;
+		missed[t] = 0;
+		/* born from this scan's measurement, so not missed */
+		matched[t] = true;
+		live++;
+		return id[t];
+	}
+
+	private void close(int t) {
+		id[t] = 0;
+		free[freeCount++] = t;
+		live--;
+	}
+
+	/**
+	 * Returns the id of the track each measurement of the last update was
+	 * assigned to.  The array is reused.
+	 * @return track ids, 0 where no track could be opened
+	 */
+	public int[] getAssignments() {
+		return assignment;
+	}
+
+	/** @return number of live tracks, tentative ones included */
+	public int getTrackCount() {
+		return live;
+	}
+
+	/** @return number of track slots; slots with id 0 are unused */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** @return id of the track in a slot, 0 if the slot is unused */
+	public int getId(int slot) {
+		return id[slot];
+	}
+
+	/** @return true if the track in a slot has been confirmed */
+	public boolean isConfirmed(int slot) {
+		return id[slot] != 0 && hits[slot] >= confirmHits;
+	}
+
+	public float getX(int slot) {
+		return x[slot];
+	}
+
+	public float getY(int slot) {
+		return y[slot];
+	}
+
+	/** @return velocity along x in mm/s */
+	public float getVX(int slot) {
+		return vx[slot];
+	}
+
+	/** @return velocity along y in mm/s */
+	public float getVY(int slot) {
+		return vy[slot];
+	}
+
+	/** @return standard deviation of the position in mm, per axis */
+	public double getPositionDeviation(int slot) {
+		return Math.sqrt(pxx[slot]);
+	}
+}
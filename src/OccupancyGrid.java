@@ -0,0 +1,141 @@
+package lidar;
+
+/**
+ * A 2D occupancy map stored as one byte per cell.
+ *
+ * Cells hold an occupancy value between {@link #FREE} and {@link #OCCUPIED},
+ * or {@link #UNKNOWN}.  The grid covers a rectangle of the world in mm,
+ * starting at the origin (the lower left corner of cell 0,0) with square
+ * cells of the given resolution.  Cells are stored row by row, so the index
+ * of cell (cx, cy) is cy * width + cx.
+ */
+public class OccupancyGrid {
+	public static final byte FREE = 0;
+	public static final byte OCCUPIED = 100;
+	public static final byte UNKNOWN = -1;
+	/** Values at or above this are treated as obstacles */
+	public static final byte OCCUPIED_THRESHOLD = 50;
+
+	private final int width;
+	private final int height;
+	private final double resolution;
+	private final double originX;
+	private final double originY;
+	private final byte[] cells;
+
+	/**
+	 * Creates a grid with all cells unknown.
+	 *
+	 * @param width number of cells along x
+	 * @param height number of cells along y
+	 * @param resolution edge length of a cell in mm
+	 * @param originX world x of the grid's lower left corner in mm
+	 * @param originY world y of the grid's lower left corner in mm
+	 */
+	public OccupancyGrid(int width, int height, double resolution,
+			double originX, double originY) {
+		if(width <= 0 || height <= 0 || resolution <= 0)
+			throw new IllegalArgumentException();
+		this.width = width;
+		this.height = height;
+		this.resolution = resolution;
+		this.originX = originX;
+		this.originY = originY;
+		this.cells = new byte[width * height];
+		fill(UNKNOWN);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** @return cell edge length in mm */
+	public double getResolution() {
+		return resolution;
+	}
+
+	public double getOriginX() {
+		return originX;
+	}
+
+	public double getOriginY() {
+		return originY;
+	}
+
+	/**
+	 * Returns the backing array, row by row.  Writing to it changes the grid.
+	 * @return cell values
+	 */
+	public byte[] getCells() {
+		return cells;
+	}
+
+	/**
+	 * Sets every cell to the same value.
+	 * @param value the value
+	 */
+	public void fill(byte value) {
+		java.util.Arrays.fill(cells, value);
+	}
+
+	/** @return column of the cell containing world x, may be outside the grid */
+	public int toCellX(double x) {
+		return (int) Math.floor((x - originX) / resolution);
+	}
+
+	/** @return row of the cell containing world y, may be outside the grid */
+	public int toCellY(double y) {
+		return (int) Math.floor((y - originY) / resolution);
+	}
+
+	/** @return world x of the center of column cx */
+	public double toWorldX(int cx) {
+		return originX + (cx + 0.5) * resolution;
+	}
+
+	/** @return world y of the center of row cy */
+	public double toWorldY(int cy) {
+		return originY + (cy + 0.5) * resolution;
+	}
+
+	public boolean contains(int cx, int cy) {
+		return cx >= 0 && cy >= 0 && cx < width && cy < height;
+	}
+
+	/**
+	 * Returns the value of a cell.
+	 * @return the value, {@link #UNKNOWN} outside the grid
+	 */
+	public byte get(int cx, int cy) {
+		if(!contains(cx, cy)) return UNKNOWN;
+		return cells[cy * width + cx];
+	}
+
+	/**
+	 * Sets the value of a cell.  Cells outside the grid are ignored.
+	 */
+	public void set(int cx, int cy, byte value) {
+		if(contains(cx, cy)) cells[cy * width + cx] = value;
+	}
+
+	/**
+	 * Reports whether a cell is an obstacle.
+	 * @return true if the cell's value is at least {@link #OCCUPIED_THRESHOLD}
+	 */
+	public boolean isOccupied(int cx, int cy) {
+		return get(cx, cy) >= OCCUPIED_THRESHOLD;
+	}
+
+	/**
+	 * Marks the cell containing a world point as occupied.
+	 * @param x world x in mm
+	 * @param y world y in mm
+	 */
+	public void markOccupied(double x, double y) {
+		set(toCellX(x), toCellY(y), OCCUPIED);
+	}
+}
@@ -0,0 +1,389 @@
+package lidar;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Monte Carlo localization of the robot on a known map.
+ *
+ * The pose belief is a set of particles kept in parallel primitive arrays
+ * (x, y, heading, weight), with a second set of arrays that resampling
+ * writes into before the two are swapped, so a filter cycle allocates
+ * nothing.  Scans are scored against a {@link LikelihoodField}: each used
+ * beam endpoint costs one table lookup.  Beams are subsampled so that the
+ * used endpoints are at least a minimum distance apart, which keeps the
+ * work per scan bounded and spreads it evenly over the scene instead of
+ * over the angle.  Particle weights are computed in parallel on a
+ * {@link ForkJoinPool} and resampling uses the low variance method.
+ *
+ * Poses are {@link Position}s in the map frame with x and y in mm and the
+ * heading in degrees, counter-clockwise from the +x axis, as used by
+ * {@link Position#addDistance(double)}.  This is not the bearing convention
+ * of {@link Position#computeThetaDeltaToGoal(Position)}, which starts at -y;
+ * convert before mixing the two.
+ */
+public class ParticleFilterLocalizer {
+	/* particles per parallel weighting task */
+	private static final int PARTICLES_PER_TASK = 256;
+
+	private final LikelihoodField field;
+	private final ForkJoinPool pool;
+	private final Random random;
+	private final int count;
+
+	/* particle set, swapped with the spare set on resampling */
+	private float[] px;
+	private float[] py;
+	private float[] ptheta;
+	private float[] spareX;
+	private float[] spareY;
+	private float[] spareTheta;
+	private final double[] weight;
+
+	/* beam endpoints of the current scan in the robot frame */
+	private final int maxBeams;
+	private final float[] beamX;
+	private final float[] beamY;
+	private int beams;
+	private BeamGeometry geometry;
+
+	/* sensor mount in the robot frame */
+	private final float mountX;
+	private final float mountY;
+	private final float mountCos;
+	private final float mountSin;
+
+	private double minBeamSpacing;
+	private int maxRange = 20000;
+
+	/* motion noise, standard deviations per unit of motion */
+	private double translationNoise = 0.05;
+	private double rotationNoise = 0.05;
+	private double driftNoise = 0.0001;
+
+	/* indices of free map cells for global initialization */
+	private final int[] freeCells;
+
+	private double effectiveSize;
+
+	/**
+	 * Creates a localizer.
+	 *
+	 * @param field measurement model built from the map
+	 * @param mount pose of the LMS111 in the robot frame (mm, degrees)
+	 * @param particles number of particles
+	 * @param maxBeams largest number of beams used per scan
+	 * @param pool pool computing the weights, null for the common pool
+	 */
+	public ParticleFilterLocalizer(LikelihoodField field, Position mount,
+			int particles, int maxBeams, ForkJoinPool pool) {
+		if(particles <= 0 || maxBeams <= 0) throw new IllegalArgumentException();
+		this.field = field;
+		this.pool = pool != null ? pool : ForkJoinPool.commonPool();
+		this.random = new Random();
+		this.count = particles;
+
+		this.px = new float[particles];
+		this.py = new float[particles];
+		this.ptheta = new float[particles];
+		this.spareX = new float[particles];
+		this.spareY = new float[particles];
+		this.spareTheta = new float[particles];
+		this.weight = new double[particles];
+
+		this.maxBeams = maxBeams;
+		this.beamX = new float[maxBeams];
+		this.beamY = new float[maxBeams];
+
+		this.mountX = (float) mount.x;
+		this.mountY = (float) mount.y;
+		this.mountCos = (float) Math.cos(Math.toRadians(mount.heading));
+		this.mountSin = (float) Math.sin(Math.toRadians(mount.heading));
+
+		OccupancyGrid map = field.getMap();
+		this.minBeamSpacing = 2 * map.getResolution();
+		byte[] cells = map.getCells();
+		int free = 0;
+		for(int i = 0; i < cells.length; i++)
+			if(cells[i] == OccupancyGrid.FREE) free++;
+		this.freeCells = new int[free];
+		for(int i = 0, j = 0; i < cells.length; i++)
+			if(cells[i] == OccupancyGrid.FREE) freeCells[j++] = i;
+	}
+
+	/**
+	 * Sets the motion noise used by {@link #predict(double, double, double)}.
+	 *
+	 * @param translation translation error per mm travelled
+	 * @param rotation heading error per degree turned
+	 * @param drift heading error in degrees per mm travelled
+	 */
+	public void setMotionNoise(double translation, double rotation, double drift) {
+		this.translationNoise = translation;
+		this.rotationNoise = rotation;
+		this.driftNoise = drift;
+	}
+
+	/**
+	 * Sets how beams are selected from a scan.
+	 *
+	 * @param minSpacing smallest distance between used endpoints in mm
+	 * @param maxRange ranges beyond this many mm are ignored
+	 */
+	public void setBeamSelection(double minSpacing, int maxRange) {
+		if(minSpacing <= 0 || maxRange <= 0) throw new IllegalArgumentException();
+		this.minBeamSpacing = minSpacing;
+		this.maxRange = maxRange;
+	}
+
+	/**
+	 * Spreads the particles uniformly over the free cells of the map, for
+	 * global localization without a prior.
+	 */
+	public void initializeGlobal() {
+		if(freeCells.length == 0) throw new IllegalStateException("map has no free cells");
+		OccupancyGrid map = field.getMap();
+		int w = map.getWidth();
+		double res = map.getResolution();
+		for(int i = 0; i < count; i++) {
+			int cell = freeCells[random.nextInt(freeCells.length)];
+			px[i] = (float) (map.getOriginX() + (cell % w + random.nextDouble()) * res);
+			py[i] = (float) (map.getOriginY() + (cell / w + random.nextDouble()) * res);
+			ptheta[i] = (float) (random.nextDouble() * 360.0);
+			weight[i] = 1.0 / count;
+		}
+		effectiveSize = count;
+	}
+
+	/**
+	 * Spreads the particles around a pose guess.
+	 *
+	 * @param guess the guessed pose
+	 * @param sigmaXY standard deviation of the position in mm
+	 * @param sigmaHeading standard deviation of the heading in degrees
+	 */
+	public void initialize(Position guess, double sigmaXY, double sigmaHeading) {
+		for(int i = 0; i < count; i++) {
+			px[i] = (float) (guess.x + random.nextGaussian() * sigmaXY);
+			py[i] = (float) (guess.y + random.nextGaussian() * sigmaXY);
+			ptheta[i] = (float) (guess.heading + random.nextGaussian() * sigmaHeading);
+			weight[i] = 1.0 / count;
+		}
+		effectiveSize = count;
+	}
+
+	/**
+	 * Moves every particle by an odometry step with sampled noise.
+	 *
+	 * @param forward distance travelled along the heading in mm
+	 * @param left distance travelled sideways in mm
+	 * @param turn change of heading in degrees
+	 */
+	public void predict(double forward, double left, double turn) {
+		final double dist = Math.sqrt(forward * forward + left * left);
+		final double sigmaT = translationNoise * dist;
+		final double sigmaR = rotationNoise * Math.abs(turn) + driftNoise * dist;
+
+		for(int i = 0; i < count; i++) {
+			double f = forward + random.nextGaussian() * sigmaT;
+			double l = left + random.nextGaussian() * sigmaT;
+			double h = Math.toRadians(ptheta[i]);
+			double c = Math.cos(h), s = Math.sin(h);
+			px[i] += (float) (c * f - s * l);
+			py[i] += (float) (s * f + c * l);
+			ptheta[i] += (float) (turn + random.nextGaussian() * sigmaR);
+		}
+	}
+
+	/**
+	 * Weights the particles by how well a scan fits the map from their pose
+	 * and resamples when the weights have become too uneven.
+	 *
+	 * @param scan the latest scan
+	 */
+	public void update(ScanData scan) {
+		selectBeams(scan);
+		if(beams == 0) return;
+
+		pool.invoke(new Weigh(0, count));
+
+		/* normalize from log weights without overflow */
+		double max = Double.NEGATIVE_INFINITY;
+		for(int i = 0; i < count; i++)
+			if(weight[i] > max) max = weight[i];
+		double sum = 0;
+		for(int i = 0; i < count; i++) {
+			weight[i] = Math.exp(weight[i] - max);
+			sum += weight[i];
+		}
+		double sumSq = 0;
+		for(int i = 0; i < count; i++) {
+			weight[i] /= sum;
+			sumSq += weight[i] * weight[i];
+		}
+		effectiveSize = 1.0 / sumSq;
+
+		if(effectiveSize < count / 2.0) resample();
+	}
+
+	/* picks endpoints at least minBeamSpacing apart, in the robot frame */
+	private void selectBeams(ScanData scan) {
+		if(geometry == null || !geometry.matches(scan))
+			geometry = BeamGeometry.of(scan);
+
+		final int[] dist = scan.getDIST1();
+		final int n = Math.min(dist.length, geometry.getCount());
+		final double spacing2 = minBeamSpacing * minBeamSpacing;
+		float lastX, lastY = 0;
+
+		/* widen the spacing until the selection fits */
+		for(double scale = 1; ; scale *= 2) {
+			beams = 0;
+			lastX = Float.NaN;
+			for(int i = 0; i < n && beams <= maxBeams; i++) {
+				int r = dist[i];
+				if(r <= 0 || r >= maxRange) continue;
+				float sx = r * geometry.cos(i), sy = r * geometry.sin(i);
+				if(!Float.isNaN(lastX)) {
+					float dx = sx - lastX, dy = sy - lastY;
+					if(dx * dx + dy * dy < spacing2 * scale * scale) continue;
+				}
+				lastX = sx;
+				lastY = sy;
+				if(beams < maxBeams) {
+					beamX[beams] = mountX + mountCos * sx - mountSin * sy;
+					beamY[beams] = mountY + mountSin * sx + mountCos * sy;
+				}
+				beams++;
+			}
+			if(beams <= maxBeams) return;
+		}
+	}
+
+	/* log weight of the particles in [from, to) */
+	private class Weigh extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+
+		Weigh(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if(to - from > PARTICLES_PER_TASK) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Weigh(from, mid), new Weigh(mid, to));
+				return;
+			}
+
+			final OccupancyGrid map = field.getMap();
+			final float[] table = field.getLogLikelihoods();
+			final float outside = field.getOutside();
+			final int w = map.getWidth(), h = map.getHeight();
+			final float inv = (float) (1.0 / map.getResolution());
+			final float ox = (float) map.getOriginX(), oy = (float) map.getOriginY();
+
+			for(int i = from; i < to; i++) {
+				double a = Math.toRadians(ptheta[i]);
+				/* everything below works in grid units */
+				float c = (float) Math.cos(a) * inv, s = (float) Math.sin(a) * inv;
+				float x = (px[i] - ox) * inv, y = (py[i] - oy) * inv;
+				double logW = 0;
+				for(int b = 0; b < beams; b++) {
+					float gx = x + c * beamX[b] - s * beamY[b];
+					float gy = y + s * beamX[b] + c * beamY[b];
+					/* test the sign first, the cast rounds towards zero */
+					if(gx < 0 || gy < 0) {
+						logW += outside;
+						continue;
+					}
+					int cx = (int) gx, cy = (int) gy;
+					logW += (cx >= w || cy >= h) ? outside : table[cy * w + cx];
+				}
+				/* keep what the previous weights knew if we didn't resample */
+				weight[i] = logW + Math.log(weight[i]);
+			}
+		}
+	}
+
+	/* low variance resampling into the spare arrays */
+	private void resample() {
+		final double step = 1.0 / count;
+		double u = random.nextDouble() * step;
+		double c = weight[0];
+		int i = 0;
+		for(int m = 0; m < count; m++) {
+			while(u > c && i < count - 1) {
+				i++;
+				c += weight[i];
+			}
+			spareX[m] = px[i];
+			spareY[m] = py[i];
+			spareTheta[m] = ptheta[i];
+			u += step;
+		}
+
+		float[] t;
+		t = px; px = spareX; spareX = t;
+		t = py; py = spareY; spareY = t;
+		t = ptheta; ptheta = spareTheta; spareTheta = t;
+		for(int m = 0; m < count; m++) weight[m] = step;
+	}
+
+	/**
+	 * Returns the weighted mean pose of the particles.
+	 * @return the pose estimate
+	 */
+	public Position getPose() {
+		double x = 0, y = 0, c = 0, s = 0;
+		for(int i = 0; i < count; i++) {
+			double a = Math.toRadians(ptheta[i]);
+			x += weight[i] * px[i];
+			y += weight[i] * py[i];
+			c += weight[i] * Math.cos(a);
+			s += weight[i] * Math.sin(a);
+		}
+		return new Position(x, y, Math.toDegrees(Math.atan2(s, c)));
+	}
+
+	/**
+	 * Returns the effective number of particles after the last update, a
+	 * measure of how concentrated the belief is.
+	 * @return effective sample size
+	 */
+	public double getEffectiveSize() {
+		return effectiveSize;
+	}
+
+	/** @return number of beams used in the last update */
+	public int getBeamsUsed() {
+		return beams;
+	}
+
+	public int getParticleCount() {
+		return count;
+	}
+
+	/** @return particle x coordinates in mm, shared */
+	public float[] getParticleX() {
+		return px;
+	}
+
+	/** @return particle y coordinates in mm, shared */
+	public float[] getParticleY() {
+		return py;
+	}
+
+	/** @return particle headings in degrees, shared */
+	public float[] getParticleHeading() {
+		return ptheta;
+	}
+
+	/** @return normalized particle weights, shared */
+	public double[] getWeights() {
+		return weight;
+	}
+}
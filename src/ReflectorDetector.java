@@ -0,0 +1,244 @@
+package lidar;
+
+/**
+ * Finds retro-reflective landmarks in the remission channel of a scan.
+ *
+ * Reflectors return far more light than ordinary surfaces.  Beams whose
+ * remission reaches a threshold are grouped with their neighbours while the
+ * range stays continuous.  For each group the direction is the remission
+ * weighted mean of the beam angles, which places the reflector between
+ * beams, and the range is the remission weighted mean range.  One pass over
+ * the scan, no allocation.
+ *
+ * Detections can then be matched against a {@link LandmarkMap} and, with
+ * two or more matches, turned into an absolute pose of the sensor.
+ */
+public class ReflectorDetector {
+	private final int threshold;
+	private final int minBeams;
+	private final int maxBeams;
+	private final int maxStep;
+	private final int capacity;
+	private final boolean secondEcho;
+
+	private BeamGeometry geometry;
+
+	/* detections of the last scan, sensor frame */
+	private final float[] angle;
+	private final float[] range;
+	private final float[] x;
+	private final float[] y;
+	private final int[] strength;
+	private final int[] width;
+	private final int[] landmark;
+	/* squared distance to the matched landmark, world frame */
+	private final float[] match;
+	private int count;
+
+	/**
+	 * Creates a detector.
+	 *
+	 * @param threshold smallest remission of a reflector beam
+	 * @param minBeams fewest beams of a reflector
+	 * @param maxBeams most beams of a reflector; wider groups are bright
+	 * 			surfaces, not reflectors
+	 * @param maxStep largest range step in mm between beams of a reflector
+	 * @param capacity most reflectors reported per scan
+	 * @param secondEcho true to use DIST2/RSSI2 instead of DIST1/RSSI1
+	 */
+	public ReflectorDetector(int threshold, int minBeams, int maxBeams, int maxStep,
+			int capacity, boolean secondEcho) {
+		if(minBeams < 1 || maxBeams < minBeams) throw new IllegalArgumentException();
+		this.threshold = threshold;
+		this.minBeams = minBeams;
+		this.maxBeams = maxBeams;
+		this.maxStep = maxStep;
+		this.capacity = capacity;
+		this.secondEcho = secondEcho;
+
+		angle = new float[capacity];
+		range = new float[capacity];
+		x = new float[capacity];
+		y = new float[capacity];
+		strength = new int[capacity];
+		width = new int[capacity];
+		landmark = new int[capacity];
+		match = new float[capacity];
+	}
+
+	/**
+	 * Finds the reflectors in a scan.
+	 *
+	 * @param scan the scan, with remission values
+	 * @return number of reflectors found
+	 */
+	public int detect(ScanData scan) {
+		final int[] dist = secondEcho ? scan.getDIST2() : scan.getDIST1();
+		final int[] rssi = secondEcho ? scan.getRSSI2() : scan.getRSSI1();
+		count = 0;
+		if(dist == null || rssi == null) return 0;
+		if(geometry == null || !geometry.matches(scan)) geometry = BeamGeometry.of(scan);
+
+		final int n = Math.min(Math.min(dist.length, rssi.length), geometry.getCount());
+		int first = -1, prev = 0;
+		long weight = 0, peak = 0;
+		double sumAngle = 0, sumRange = 0;
+
+		for(int i = 0; i <= n; i++) {
+			final boolean bright = i < n && rssi[i] >= threshold && dist[i] > 0;
+			if(bright && first >= 0 && Math.abs(dist[i] - prev) <= maxStep) {
+				weight += rssi[i];
+				sumAngle += (double) rssi[i] * (i - first);
+				sumRange += (double) rssi[i] * dist[i];
+				if(rssi[i] > peak) peak = rssi[i];
+				prev = dist[i];
+				continue;
+			}
+			if(first >= 0) emit(first, i - first, weight, peak, sumAngle, sumRange);
+			first = -1;
+			if(bright) {
+				first = i;
+				prev = dist[i];
+				weight = rssi[i];
+				peak = rssi[i];
+				sumAngle = 0;
+				sumRange = (double) rssi[i] * dist[i];
+			}
+		}
+		return count;
+	}
+
+	private void emit(int first, int beams, long weight, long peak, double sumAngle,
+			double sumRange) {
+		if(beams < minBeams || beams > maxBeams || count >= capacity) return;
+		/* sub-beam direction between the first and the last beam */
+		final double b = first + sumAngle / weight;
+		final double a = geometry.angle(first)
+				+ (b - first) * Math.toRadians(geometry.getAngleStep() / 10000.0);
+		final double r = sumRange / weight;
+		angle[count] = (float) a;
+		range[count] = (float) r;
+		x[count] = (float) (r * Math.cos(a));
+		y[count] = (float) (r * Math.sin(a));
+		strength[count] = (int) peak;
+		width[count] = beams;
+		landmark[count] = -1;
+		count++;
+	}
+
+	/**
+	 * Matches the detections of the last scan with known landmarks.  When
+	 * several detections fall within the gate of the same landmark, the
+	 * nearest one keeps it.
+	 *
+	 * @param map the landmarks
+	 * @param sensor predicted pose of the sensor in the world (mm, degrees)
+	 * @param gate largest distance in mm between a detection and its landmark
+	 * @return number of detections matched
+	 */
+	public int associate(LandmarkMap map, Position sensor, float gate) {
+		final double h = Math.toRadians(sensor.heading);
+		final float c = (float) Math.cos(h), s = (float) Math.sin(h);
+		for(int i = 0; i < count; i++) {
+			float wx = (float) sensor.x + c * x[i] - s * y[i];
+			float wy = (float) sensor.y + s * x[i] + c * y[i];
+			landmark[i] = map.nearest(wx, wy, gate);
+			if(landmark[i] < 0) continue;
+			float dx = wx - map.getX(landmark[i]), dy = wy - map.getY(landmark[i]);
+			match[i] = dx * dx + dy * dy;
+		}
+
+		/* a landmark explains at most one detection, the nearest */
+		int matched = 0;
+		for(int i = 0; i < count; i++) {
+			if(landmark[i] < 0) continue;
+			for(int j = i + 1; j < count; j++) {
+				if(landmark[j] != landmark[i]) continue;
+				if(match[j] < match[i]) {
+					landmark[i] = -1;
+					break;
+				}
+				landmark[j] = -1;
+			}
+			if(landmark[i] >= 0) matched++;
+		}
+		return matched;
+	}
+
+	/**
+	 * Computes the sensor pose that best aligns the matched detections with
+	 * their landmarks, in the least squares sense.
+	 *
+	 * @param map the landmarks used in {@link #associate}
+	 * @return the sensor pose in the world (mm, degrees), null if fewer than
+	 * 			two detections are matched
+	 */
+	public Position estimatePose(LandmarkMap map) {
+		int n = 0;
+		double px = 0, py = 0, qx = 0, qy = 0;
+		for(int i = 0; i < count; i++) {
+			if(landmark[i] < 0) continue;
+			px += x[i];
+			py += y[i];
+			qx += map.getX(landmark[i]);
+			qy += map.getY(landmark[i]);
+			n++;
+		}
+		if(n < 2) return null;
+		px /= n;
+		py /= n;
+		qx /= n;
+		qy /= n;
+
+		double sin = 0, cos = 0;
+		for(int i = 0; i < count; i++) {
+			if(landmark[i] < 0) continue;
+			double ax = x[i] - px, ay = y[i] - py;
+			double bx = map.getX(landmark[i]) - qx, by = map.getY(landmark[i]) - qy;
+			cos += ax * bx + ay * by;
+			sin += ax * by - ay * bx;
+		}
+		final double theta = Math.atan2(sin, cos);
+		final double c = Math.cos(theta), s = Math.sin(theta);
+		return new Position(qx - (c * px - s * py), qy - (s * px + c * py),
+				Math.toDegrees(theta));
+	}
+
+	/** @return number of reflectors in the last scan */
+	public int getCount() {
+		return count;
+	}
+
+	/** @return direction of a reflector in radians, sensor frame */
+	public float getAngle(int i) {
+		return angle[i];
+	}
+
+	/** @return range of a reflector in mm */
+	public float getRange(int i) {
+		return range[i];
+	}
+
+	public float getX(int i) {
+		return x[i];
+	}
+
+	public float getY(int i) {
+		return y[i];
+	}
+
+	/** @return highest remission of a reflector */
+	public int getStrength(int i) {
+		return strength[i];
+	}
+
+	/** @return number of beams of a reflector */
+	public int getWidth(int i) {
+		return width[i];
+	}
+
+	/** @return index of the matched landmark, -1 if none */
+	public int getLandmark(int i) {
+		return landmark[i];
+	}
+}
@@ -0,0 +1,135 @@
+package lidar;
+
+/**
+ * A protective or warning field in the sensor frame.
+ *
+ * A field is either a polygon (x forward, y left, mm) or a sector of
+ * directions up to a fixed range.  Before scans are evaluated it is compiled
+ * for one beam layout into a pair of range limits per beam: a beam violates
+ * the field when its range lies in [near, far).  Beams that do not pass
+ * through the field get near == far and can never violate it.
+ */
+public class SafetyField {
+	private final String name;
+	private final int minBeams;
+
+	/* polygon, or null for a sector */
+	private final double[] polygonX;
+	private final double[] polygonY;
+
+	/* sector, radians in the sensor frame */
+	private final double from;
+	private final double to;
+	private final int range;
+
+	private SafetyField(String name, int minBeams, double[] x, double[] y,
+			double from, double to, int range) {
+		if(minBeams < 1) throw new IllegalArgumentException("minBeams must be at least 1");
+		this.name = name;
+		this.minBeams = minBeams;
+		this.polygonX = x;
+		this.polygonY = y;
+		this.from = from;
+		this.to = to;
+		this.range = range;
+	}
+
+	/**
+	 * Creates a polygonal field.
+	 *
+	 * @param name name reported to listeners
+	 * @param x vertex x coordinates in mm, sensor frame
+	 * @param y vertex y coordinates in mm, sensor frame
+	 * @param minBeams number of beams that must fall into the field for a scan
+	 * 			to violate it, to ignore single spurious echoes
+	 * @return the field
+	 */
+	public static SafetyField polygon(String name, double[] x, double[] y, int minBeams) {
+		if(x.length < 3 || y.length != x.length)
+			throw new IllegalArgumentException("need at least 3 vertices");
+		return new SafetyField(name, minBeams, x.clone(), y.clone(), 0, 0, 0);
+	}
+
+	/**
+	 * Creates a sector field.
+	 *
+	 * @param name name reported to listeners
+	 * @param fromDegrees first direction in degrees, 0 straight ahead, positive
+	 * 			to the left
+	 * @param toDegrees last direction in degrees, greater than fromDegrees
+	 * @param range radius of the sector in mm
+	 * @param minBeams beams needed for a violation
+	 * @return the field
+	 */
+	public static SafetyField sector(String name, double fromDegrees, double toDegrees,
+			int range, int minBeams) {
+		if(toDegrees <= fromDegrees || range <= 0) throw new IllegalArgumentException();
+		return new SafetyField(name, minBeams, null, null,
+				Math.toRadians(fromDegrees), Math.toRadians(toDegrees), range);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMinBeams() {
+		return minBeams;
+	}
+
+	/**
+	 * Compiles the field for a beam layout.
+	 *
+	 * @param geometry the layout
+	 * @param near receives the lower range limit of each beam in mm
+	 * @param far receives the upper range limit of each beam in mm
+	 */
+	public void compile(BeamGeometry geometry, int[] near, int[] far) {
+		for(int i = 0; i < geometry.getCount(); i++) {
+			if(polygonX == null) {
+				double a = geometry.angle(i);
+				boolean inside = a >= from && a <= to;
+				near[i] = 0;
+				far[i] = inside ? range : 0;
+			} else {
+				compileBeam(geometry.cos(i), geometry.sin(i), near, far, i);
+			}
+		}
+	}
+
+	/*
+	 * Intersects the beam with every edge.  The beam is treated as in the
+	 * field up to the last crossing, from the sensor if it is inside the
+	 * polygon (odd crossings) and from the first crossing otherwise.  A beam
+	 * through a concave part leaves and re-enters the field; the stretches
+	 * outside are covered too, which is conservative, but no stretch inside
+	 * is ever missed.
+	 */
+	private void compileBeam(double c, double s, int[] near, int[] far, int beam) {
+		final int n = polygonX.length;
+		double first = Double.POSITIVE_INFINITY, last = 0;
+		int crossings = 0;
+		for(int k = 0; k < n; k++) {
+			int j = (k + 1) % n;
+			double px = polygonX[k], py = polygonY[k];
+			double ex = polygonX[j] - px, ey = polygonY[j] - py;
+			double det = ex * s - ey * c;
+			if(det == 0) continue;
+			/* solve t * (c, s) = p + u * e */
+			double t = (ex * py - ey * px) / det;
+			double u = (c * py - s * px) / det;
+			if(u < 0 || u >= 1 || t <= 0) continue;
+			crossings++;
+			first = Math.min(first, t);
+			last = Math.max(last, t);
+		}
+		if(crossings == 0) {
+			near[beam] = far[beam] = 0;
+		} else if((crossings & 1) == 1) {
+			near[beam] = 0;
+			far[beam] = (int) Math.ceil(last);
+		} else {
+			near[beam] = (int) Math.floor(first);
+			far[beam] = (int) Math.ceil(last);
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package lidar;
+
+/**
+ * In-process fan-out of scans to any number of subscribers.
+ *
+ * Published scans are stored in a fixed ring.  Every subscriber keeps its own
+ * read sequence into that ring and chooses how it deals with falling behind:
+ * <ul>
+ * <li>{@link Backpressure#BLOCK}: never misses a scan; the publisher waits
+ *     when this subscriber is a full ring behind.</li>
+ * <li>{@link Backpressure#DROP_OLDEST}: skips the scans that were overwritten
+ *     while it was busy and continues with the oldest one still in the ring.</li>
+ * <li>{@link Backpressure#LATEST_ONLY}: always jumps to the newest scan.</li>
+ * </ul>
+ * Only blocking subscribers can hold up the publisher, so a slow logger using
+ * one of the dropping policies never delays a safety monitor.
+ *
+ * Subscribers either pull scans with {@link Subscription#next(long)} or are
+ * registered with a {@link ScanListener} and served by their own thread.
+ */
+public class ScanBus {
+	/** How a subscriber behaves when it falls behind the publisher */
+	public enum Backpressure { BLOCK, DROP_OLDEST, LATEST_ONLY }
+
+	private final ScanData[] ring;
+	private final int mask;
+
+	/** sequence of the last published scan, -1 before the first one */
+	private volatile long cursor = -1;
+	private volatile Subscription[] subscriptions = new Subscription[0];
+
+	/* monitor used by waiting publishers and subscribers */
+	private final Object lock = new Object();
+	private volatile boolean publisherWaiting;
+
+	/**
+	 * Creates a bus.
+	 *
+	 * @param capacity number of scans kept in the ring, rounded up to a power
+	 * 			of two
+	 */
+	public ScanBus(int capacity) {
+		if(capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException();
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity) size <<= 1;
+		this.ring = new ScanData[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Publishes a scan to all subscribers.  Blocks only while a subscriber
+	 * with {@link Backpressure#BLOCK} is a full ring behind.
+	 *
+	 * @param scan the scan to publish
+	 * @throws InterruptedException if interrupted while waiting for a blocking
+	 * 			subscriber
+	 */
+	public synchronized void publish(ScanData scan) throws InterruptedException {
+		final long seq = cursor + 1;
+
+		if(seq - minBlockingSequence() >= ring.length) {
+			synchronized(lock) {
+				publisherWaiting = true;
+				try {
+					while(seq - minBlockingSequence() >= ring.length)
+						lock.wait();
+				} finally {
+					publisherWaiting = false;
+				}
+			}
+		}
+
+		ring[(int) seq & mask] = scan;
+		cursor = seq;
+
+		synchronized(lock) {
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns a listener that publishes every scan it receives, for plugging
+	 * the bus into code that delivers scans to a {@link ScanListener}.
+	 * @return listener feeding this bus
+	 */
+	public ScanListener asListener() {
+		return new ScanListener() {
+			public void scanReceived(ScanData scan) {
+				try {
+					publish(scan);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Registers a pull subscriber.  It starts with the next published scan.
+	 *
+	 * @param policy backpressure policy of the subscriber
+	 * @return the subscription to read from
+	 */
+	public Subscription subscribe(Backpressure policy) {
+		Subscription sub = new Subscription(policy);
+		synchronized(lock) {
+			sub.next = cursor + 1;
+			Subscription[] old = subscriptions;
+			Subscription[] subs = new Subscription[old.length + 1];
+			System.arraycopy(old, 0, subs, 0, old.length);
+			subs[old.length] = sub;
+			subscriptions = subs;
+		}
+		return sub;
+	}
+
+	/**
+	 * Registers a subscriber that is served by its own daemon thread.
+	 * Exceptions thrown by the listener are reported and the thread goes on
+	 * with the next scan; if the thread ends for any other reason the
+	 * subscription is closed, so it can never hold up the publisher.
+	 *
+	 * @param listener receives the scans
+	 * @param policy backpressure policy of the subscriber
+	 * @return the subscription, close it to stop the thread
+	 */
+	public Subscription subscribe(final ScanListener listener, Backpressure policy) {
+		final Subscription sub = subscribe(policy);
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while(!sub.closed) {
+						ScanData scan = sub.next(0);
+						if(scan == null) continue;
+						try {
+							listener.scanReceived(scan);
+						} catch (final RuntimeException e) {
+							/* one bad scan must not stop the subscriber */
+							e.printStackTrace();
+						}
+					}
+				} catch (final InterruptedException e) {
+					/* closed */
+				} finally {
+					/* never leave a registered subscription without a reader */
+					sub.close();
+				}
+			}
+		}, "ScanBus-" + policy);
+		thread.setDaemon(true);
+		sub.thread = thread;
+		thread.start();
+		return sub;
+	}
+
+	private long minBlockingSequence() {
+		long min = Long.MAX_VALUE;
+		Subscription[] subs = subscriptions;
+		for(int i = 0; i < subs.length; i++)
+			if(subs[i].policy == Backpressure.BLOCK && subs[i].next < min)
+				min = subs[i].next;
+		return min == Long.MAX_VALUE ? cursor + 1 : min;
+	}
+
+	private void remove(Subscription sub) {
+		synchronized(lock) {
+			Subscription[] old = subscriptions;
+			int found = -1;
+			for(int i = 0; i < old.length; i++)
+				if(old[i] == sub) found = i;
+			if(found < 0) return;
+
+			Subscription[] subs = new Subscription[old.length - 1];
+			System.arraycopy(old, 0, subs, 0, found);
+			System.arraycopy(old, found + 1, subs, found, subs.length - found);
+			subscriptions = subs;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * One subscriber's position in the ring.
+	 */
+	public class Subscription {
+		private final Backpressure policy;
+		/** sequence of the next scan to read */
+		private volatile long next;
+		private volatile boolean closed;
+		private volatile long dropped;
+		private Thread thread;
+
+		private Subscription(Backpressure policy) {
+			this.policy = policy;
+		}
+
+		/**
+		 * Returns the next scan for this subscriber, waiting if none is
+		 * available yet.
+		 *
+		 * @param timeoutMillis longest time to wait, 0 to wait forever
+		 * @return the scan, or null on timeout or after {@link #close()}
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		public ScanData next(long timeoutMillis) throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + timeoutMillis;
+
+			while(!closed) {
+				long available = cursor;
+				long seq = next;
+
+				if(available < seq) {
+					synchronized(lock) {
+						while(!closed && cursor < next) {
+							if(timeoutMillis <= 0) {
+								lock.wait();
+							} else {
+								long remaining = deadline - System.currentTimeMillis();
+								if(remaining <= 0) return null;
+								lock.wait(remaining);
+							}
+						}
+					}
+					continue;
+				}
+
+				if(policy == Backpressure.LATEST_ONLY && available > seq) {
+					dropped += available - seq;
+					seq = available;
+				} else if(policy == Backpressure.DROP_OLDEST
+						&& available - seq >= ring.length) {
+					long oldest = available - ring.length + 1;
+					dropped += oldest - seq;
+					seq = oldest;
+				}
+
+				ScanData scan = ring[(int) seq & mask];
+
+				/* the slot may have been reused while we were reading it */
+				if(policy != Backpressure.BLOCK && cursor - seq >= ring.length) {
+					next = seq;
+					continue;
+				}
+
+				next = seq + 1;
+				if(policy == Backpressure.BLOCK && publisherWaiting) {
+					synchronized(lock) {
+						lock.notifyAll();
+					}
+				}
+				return scan;
+			}
+			return null;
+		}
+
+		/**
+		 * Returns how many scans this subscriber skipped because of its policy.
+		 * @return number of dropped scans
+		 */
+		public long getDropped() {
+			return dropped;
+		}
+
+		/**
+		 * Returns how many published scans this subscriber has not read yet.
+		 * @return lag in scans
+		 */
+		public long getLag() {
+			return cursor + 1 - next;
+		}
+
+		public Backpressure getPolicy() {
+			return policy;
+		}
+
+		/**
+		 * Removes the subscription from the bus.  A blocked publisher is
+		 * released and a dispatch thread, if any, terminates.
+		 */
+		public void close() {
+			closed = true;
+			remove(this);
+			if(thread != null && thread != Thread.currentThread())
+				thread.interrupt();
+		}
+	}
+}
@@ -15,6 +15,11 @@ import java.util.StringTokenizer;
  * @author Matthew Delaney, Steven Kang
  */
 public class ScanData {
+	/** Value of the timestamps while they are unknown */
+	public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+	private static final long[] NO_ENCODERS = new long[0];
+	private static final int[] NO_ENCODER_SPEEDS = new int[0];
+
 	/** the raw data from LIDAR */
 	private String originalData = "";
 	
@@ -26,6 +31,20 @@ public class ScanData {
 	private int deviceStatus = -1;	
 	/** In 1/10,000 degrees */
 	private int angleStepWidth = -1;
+	/** In 1/10,000 degrees, angle of the first beam, signed */
+	private int startAngle = BeamGeometry.DEFAULT_START_ANGLE;
+	/** Number of telegrams sent by the device, -1 if unknown */
+	private long telegramCounter = -1;
+	/** Number of scans made by the device, -1 if unknown */
+	private long scanCounter = -1;
+	/** Device clock in microseconds at the start of the scan, -1 if unknown */
+	private long scanStartTime = -1;
+	/** Device clock in microseconds at transmission, -1 if unknown */
+	private long transmissionTime = -1;
+	/** Host time of reception, System.nanoTime() clock */
+	private long receiveTime = NO_TIMESTAMP;
+	/** Estimated host time of acquisition, System.nanoTime() clock */
+	private long timestamp = NO_TIMESTAMP;
 	/** Distance in mm */
 	private int[] dist1;
 	/** Distance in mm */
@@ -34,6 +53,11 @@ public class ScanData {
 	private int[] rssi1;
 	private int[] rssi2;
 	
+	/** Encoder positions in ticks, unsigned 32 bit, empty without encoder */
+	private long[] encoderPosition = NO_ENCODERS;
+	/** Encoder speeds in ticks per mm, signed 16 bit */
+	private int[] encoderSpeed = NO_ENCODER_SPEEDS;
+	
 	/**
 	 * Constructs a ScanData object given an array of range values and an 
 	 * array of remission values
@@ -72,6 +96,129 @@ public class ScanData {
 	public ScanData(String dist, String rssi, int angFreq){
 		originalData = "";
 		if (!loadScan(dist, rssi, angFreq)) throw new IllegalArgumentException();
+		angleStepWidth = angFreq * 10000;
+	}
+	
+	/**
+	 * Returns the device status reported in the telegram header.
+	 * @return device status, -1 if unknown
+	 */
+	public int getDeviceStatus(){
+		return deviceStatus;
+	}
+	
+	/**
+	 * Returns the angle between two consecutive beams in 1/10,000 degrees.
+	 * Scans built from plain arrays don't carry the step width, in which case
+	 * it is derived by spreading the beams over the full 270 degree field.
+	 * @return angle step width in 1/10,000 degrees
+	 */
+	public int getAngleStepWidth(){
+		if(angleStepWidth > 0 || dist1 == null) return angleStepWidth;
+		if(dist1.length < 2) return BeamGeometry.FULL_FIELD;
+		return BeamGeometry.FULL_FIELD / (dist1.length - 1);
+	}
+	
+	/**
+	 * Returns the angle of the first beam in 1/10,000 degrees.
+	 * @return start angle in 1/10,000 degrees
+	 */
+	public int getStartAngle(){
+		return startAngle;
+	}
+
+	/**
+	 * Returns the angle of the last beam in 1/10,000 degrees.
+	 * @return stop angle in 1/10,000 degrees
+	 */
+	public int getStopAngle(){
+		return startAngle + (getBeamCount() - 1) * getAngleStepWidth();
+	}
+
+	/**
+	 * Returns the number of beams in the scan, which is smaller than a full
+	 * field when the device's output range is limited.
+	 * @return number of DIST1 values
+	 */
+	public int getBeamCount(){
+		return dist1 == null ? 0 : dist1.length;
+	}
+	
+	/**
+	 * Returns the telegram counter of the device.
+	 * @return telegram counter, -1 if unknown
+	 */
+	public long getTelegramCounter(){
+		return telegramCounter;
+	}
+	
+	/**
+	 * Returns the scan counter of the device.
+	 * @return scan counter, -1 if unknown
+	 */
+	public long getScanCounter(){
+		return scanCounter;
+	}
+	
+	/**
+	 * Returns the device clock at the start of this scan ("time since start
+	 * up").  The clock counts microseconds and wraps at 2^32.
+	 * @return device time in microseconds, -1 if unknown
+	 */
+	public long getScanStartTime(){
+		return scanStartTime;
+	}
+	
+	/**
+	 * Returns the device clock at transmission of this scan.
+	 * @return device time in microseconds, -1 if unknown
+	 */
+	public long getTransmissionTime(){
+		return transmissionTime;
+	}
+	
+	/**
+	 * Returns the host time at which this scan was received.
+	 * @return time on the System.nanoTime() clock, or NO_TIMESTAMP
+	 */
+	public long getReceiveTime(){
+		return receiveTime;
+	}
+	
+	public void setReceiveTime(long receiveTime){
+		this.receiveTime = receiveTime;
+	}
+	
+	/**
+	 * Returns the estimated host time at which this scan was acquired, see
+	 * {@link ClockSync}.
+	 * @return time on the System.nanoTime() clock, or NO_TIMESTAMP
+	 */
+	public long getTimestamp(){
+		return timestamp;
+	}
+	
+	public void setTimestamp(long timestamp){
+		this.timestamp = timestamp;
+	}
+	
+	/**
+	 * Copies everything but the range and remission values from another
+	 * scan, so a scan can be reused as the output of a processing stage.
+	 * @param source scan whose header is copied
+	 */
+	public void copyHeader(ScanData source){
+		deviceStatus = source.deviceStatus;
+		angleStepWidth = source.angleStepWidth;
+		startAngle = source.startAngle;
+		telegramCounter = source.telegramCounter;
+		scanCounter = source.scanCounter;
+		scanStartTime = source.scanStartTime;
+		transmissionTime = source.transmissionTime;
+		receiveTime = source.receiveTime;
+		timestamp = source.timestamp;
+		encoderPosition = source.encoderPosition;
+		encoderSpeed = source.encoderSpeed;
 	}
 	
 	/**
@@ -105,6 +252,33 @@ public class ScanData {
 	public int[] getRSSI2(){
 		return rssi2;
 	}
+	
+	/**
+	 * Returns the number of encoders reported with the scan.  Encoder output
+	 * is enabled with the encoder parameter of configureScanOutput.
+	 * @return number of encoders, 0 if none
+	 */
+	public int getEncoderCount(){
+		return encoderPosition.length;
+	}
+	
+	/**
+	 * Returns the position of an encoder at the start of the scan.
+	 * @param encoder encoder index
+	 * @return position in ticks, unsigned 32 bit
+	 */
+	public long getEncoderPosition(int encoder){
+		return encoderPosition[encoder];
+	}
+	
+	/**
+	 * Returns the speed of an encoder.
+	 * @param encoder encoder index
+	 * @return speed in ticks per mm
+	 */
+	public int getEncoderSpeed(int encoder){
+		return encoderSpeed[encoder];
+	}
 	/**
 	 * Takes a return message from LMS and "loads" range and remission values.
 	 * Assume only one DIST and RSSI is given
@@ -118,11 +292,33 @@ public class ScanData {
 		
 		deviceStatus = Integer.parseInt(data[6]);
 		
+		/* counters and device clock, all hex */
+		if(data.length > 10) {
+			telegramCounter = Long.parseLong(data[7],16);
+			scanCounter = Long.parseLong(data[8],16);
+			scanStartTime = Long.parseLong(data[9],16);
+			transmissionTime = Long.parseLong(data[10],16);
+		}
+		
+		/* encoders: count, then position and speed of each, all hex */
+		if(data.length > 18) {
+			final int encoders = Integer.parseInt(data[18],16);
+			if(encoders > 0 && data.length > 18 + 2 * encoders) {
+				encoderPosition = new long[encoders];
+				encoderSpeed = new int[encoders];
+				for(int i = 0; i < encoders; i++) {
+					encoderPosition[i] = Long.parseLong(data[19 + 2 * i],16);
+					encoderSpeed[i] = (short) Integer.parseInt(data[20 + 2 * i],16);
+				}
+			}
+		}
+		
 		/* DIST1 */
 		if(scan.contains("DIST1")) {
 			for(index = 0; index < data.length; index++)
 				if(data[index].equals("DIST1")) break;
 			
+			startAngle = (int) Long.parseLong(data[index+3],16);
 			angleStepWidth = Integer.parseInt(data[index+4],16);
 			dist1 = new int[numData = Integer.parseInt(data[index+5],16)];
 			for(int i = 0; i < numData; i++) 
@@ -134,6 +330,7 @@ public class ScanData {
 			for(index = 0; index < data.length; index++)
 				if(data[index].equals("DIST2")) break;
 			
+			startAngle = (int) Long.parseLong(data[index+3],16);
 			angleStepWidth = Integer.parseInt(data[index+4],16);
 			dist2 = new int[numData = Integer.parseInt(data[index+5],16)];
 			for(int i = 0; i < numData; i++) 
@@ -145,6 +342,7 @@ public class ScanData {
 			for(index = 0; index < data.length; index++)
 				if(data[index].equals("RSSI1")) break;
 
+			startAngle = (int) Long.parseLong(data[index+3],16);
 			angleStepWidth = Integer.parseInt(data[index+4],16);
 			rssi1 = new int[numData = Integer.parseInt(data[index+5],16)];
 			for(int i = 0; i < numData; i++) 
@@ -156,6 +354,7 @@ public class ScanData {
 			for(index = 0; index < data.length; index++)
 				if(data[index].equals("RSSI2")) break;
 
+			startAngle = (int) Long.parseLong(data[index+3],16);
 			angleStepWidth = Integer.parseInt(data[index+4],16);
 			rssi2 = new int[numData = Integer.parseInt(data[index+5],16)];
 			for(int i = 0; i < numData; i++)
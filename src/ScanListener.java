@@ -0,0 +1,14 @@
+package lidar;
+
+/**
+ * Receives scans as they are delivered.
+ */
+public interface ScanListener {
+	/**
+	 * Called for each delivered scan.  Implementations must not modify the
+	 * scan, it may be shared with other listeners.
+	 *
+	 * @param scan the delivered scan
+	 */
+	void scanReceived(ScanData scan);
+}
@@ -0,0 +1,220 @@
+package lidar;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reprocesses recorded scan logs in parallel.
+ *
+ * A log is the raw byte stream received from an LMS111: LMDscandata
+ * telegrams framed by STX and ETX, in the order they arrived.  The file is
+ * split recursively into chunks that start on an STX, so every chunk holds
+ * whole telegrams and can be parsed on its own.  Chunks are memory mapped,
+ * parsed into {@link ScanData} and handed to a {@link ScanProcessor} on the
+ * threads of a {@link ForkJoinPool}.  The results of neighbouring chunks are
+ * concatenated, so the final list keeps the recording order, which is the
+ * time order of the scans.
+ *
+ * Only raw telegram logs are read; other recording formats have to be
+ * converted to this form first.
+ */
+public class ScanLogReprocessor {
+	/** Default size of the chunks processed by one task */
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	private static final byte STX = 0x02;
+	/* largest telegram accepted in a log, see LMS111 */
+	private static final int MAX_TELEGRAM = 64 * 1024;
+
+	/**
+	 * Work done for each recorded scan.  It is called from several threads at
+	 * once and must not depend on the order of calls.
+	 *
+	 * @param <R> type of the per-scan result
+	 */
+	public interface ScanProcessor<R> {
+		/**
+		 * @param scan a scan from the log
+		 * @return the result for this scan, or null to leave it out
+		 */
+		R process(ScanData scan);
+	}
+
+	private final ForkJoinPool pool;
+	private final int chunkSize;
+	private final AtomicLong scans = new AtomicLong();
+	private final AtomicLong badTelegrams = new AtomicLong();
+
+	/**
+	 * Creates a reprocessor on the common pool with the default chunk size.
+	 */
+	public ScanLogReprocessor() {
+		this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Creates a reprocessor.
+	 * @param pool pool running the chunk tasks
+	 * @param chunkSize bytes below which a range is no longer split
+	 */
+	public ScanLogReprocessor(ForkJoinPool pool, int chunkSize) {
+		if(chunkSize < MAX_TELEGRAM) throw new IllegalArgumentException();
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Processes every scan of a log.
+	 *
+	 * @param log the recorded log
+	 * @param processor work done per scan
+	 * @return non-null results in recording order
+	 * @throws IOException if the log cannot be read
+	 */
+	public <R> List<R> process(File log, ScanProcessor<R> processor) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(log, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			return pool.invoke(new Chunk<R>(channel, processor, 0, channel.size()));
+		} catch (final UncheckedIOException e) {
+			/* the pool may rethrow a copy, the original is further down the chain */
+			for(Throwable t = e; t != null; t = t.getCause())
+				if(t instanceof IOException) throw (IOException) t;
+			throw e;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Returns the number of scans parsed since this reprocessor was created.
+	 * @return parsed scans
+	 */
+	public long getScanCount() {
+		return scans.get();
+	}
+
+	/**
+	 * Returns the number of telegrams that could not be parsed as scans.
+	 * @return skipped telegrams
+	 */
+	public long getBadTelegramCount() {
+		return badTelegrams.get();
+	}
+
+	/* a byte range of the log, starting at a telegram boundary */
+	private class Chunk<R> extends RecursiveTask<List<R>> {
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final ScanProcessor<R> processor;
+		private final long start;
+		private final long end;
+
+		Chunk(FileChannel channel, ScanProcessor<R> processor, long start, long end) {
+			this.channel = channel;
+			this.processor = processor;
+			this.start = start;
+			this.end = end;
+		}
+
+		protected List<R> compute() {
+			try {
+				if(end - start > chunkSize) {
+					long split = nextFrame(channel, start + (end - start) / 2, end);
+					if(split > start && split < end) {
+						Chunk<R> left = new Chunk<R>(channel, processor, start, split);
+						Chunk<R> right = new Chunk<R>(channel, processor, split, end);
+						right.fork();
+						List<R> results = left.compute();
+						results.addAll(right.join());
+						return results;
+					}
+				}
+				return parse();
+			} catch (final IOException e) {
+				/* carried out of the pool and unwrapped by process() */
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private List<R> parse() throws IOException {
+			List<R> results = new ArrayList<R>();
+			if(end <= start) return results;
+
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+					start, end - start);
+			TelegramReader reader = new TelegramReader(new BufferInputStream(map),
+					MAX_TELEGRAM, 64 * 1024);
+
+			while(true) {
+				String telegram;
+				try {
+					telegram = reader.readString(0);
+				} catch (final EOFException e) {
+					break;
+				}
+				if(telegram == null) break;
+
+				ScanData scan;
+				try {
+					scan = new ScanData(telegram);
+				} catch (final RuntimeException e) {
+					badTelegrams.incrementAndGet();
+					continue;
+				}
+				scans.incrementAndGet();
+				R result = processor.process(scan);
+				if(result != null) results.add(result);
+			}
+			return results;
+		}
+	}
+
+	/* position of the first STX at or after from, or end if there is none */
+	private static long nextFrame(FileChannel channel, long from, long end) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(8192);
+		long pos = from;
+		while(pos < end) {
+			buf.clear();
+			int n = channel.read(buf, pos);
+			if(n <= 0) break;
+			for(int i = 0; i < n && pos + i < end; i++)
+				if(buf.get(i) == STX) return pos + i;
+			pos += n;
+		}
+		return end;
+	}
+
+	/* exposes a buffer as a stream for TelegramReader */
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer buf;
+
+		BufferInputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		public int read() {
+			return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if(!buf.hasRemaining()) return -1;
+			int n = Math.min(len, buf.remaining());
+			buf.get(b, off, n);
+			return n;
+		}
+	}
+}
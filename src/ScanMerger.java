@@ -0,0 +1,323 @@
+package lidar;
+
+/**
+ * Merges the scans of several LMS111 units mounted on the same robot into one
+ * point cloud and one 360 degree virtual scan per cycle.
+ *
+ * Each sensor delivers scans on its own schedule, either pushed in with
+ * {@link #offer(int, ScanData, long)} or read by the threads started with
+ * {@link #start(LMS111[])}.  {@link #merge()} waits until every sensor has
+ * produced a new scan, but never longer than the configured wait, and then
+ * combines the latest scans whose timestamps lie within the allowed skew of
+ * the newest one.  A slow or dead sensor therefore only leaves a gap in the
+ * output instead of stalling it.
+ *
+ * All output buffers are allocated once.  They are overwritten by the next
+ * call to {@link #merge()}, so a single thread should consume them.
+ *
+ * Mount positions are given in the robot frame with x and y in mm and the
+ * heading in degrees, counter-clockwise from the robot's forward axis.
+ */
+public class ScanMerger {
+	/** Virtual scan value for a direction no sensor covered */
+	public static final int NO_RANGE = 0;
+
+	private final int sensors;
+	private final float[] mountX;
+	private final float[] mountY;
+	private final float[] mountCos;
+	private final float[] mountSin;
+	private final long maxWaitNanos;
+	private final long maxSkewNanos;
+
+	/* latest scan per sensor, guarded by this */
+	private final ScanData[] latest;
+	private final long[] latestTime;
+	private final boolean[] fresh;
+
+	/* working copies taken while merging */
+	private final ScanData[] cycleScans;
+	private final long[] cycleTime;
+	private final BeamGeometry[] geometry;
+
+	/* output */
+	private final int maxBeams;
+	private final float[] x;
+	private final float[] y;
+	private final byte[] sensor;
+	private final int[] virtualRanges;
+	private final int virtualResolution;
+	private int count;
+	private long timestamp;
+	private int contributors;
+
+	private Thread[] readers;
+	private volatile boolean running;
+
+	/**
+	 * Creates a merger for the given mounts.
+	 *
+	 * @param mounts sensor poses in the robot frame (mm, degrees)
+	 * @param maxBeamsPerSensor largest number of beams a single scan can have
+	 * @param virtualResolution bin width of the virtual scan in 1/10,000 deg
+	 * @param maxWaitMillis longest time {@link #merge()} waits for a scan
+	 * @param maxSkewMillis largest timestamp difference merged into one cycle
+	 */
+	public ScanMerger(Position[] mounts, int maxBeamsPerSensor,
+			int virtualResolution, long maxWaitMillis, long maxSkewMillis) {
+		if(mounts.length == 0 || mounts.length > 31 || virtualResolution <= 0)
+			throw new IllegalArgumentException();
+
+		this.sensors = mounts.length;
+		this.mountX = new float[sensors];
+		this.mountY = new float[sensors];
+		this.mountCos = new float[sensors];
+		this.mountSin = new float[sensors];
+		for(int i = 0; i < sensors; i++) {
+			mountX[i] = (float) mounts[i].x;
+			mountY[i] = (float) mounts[i].y;
+			mountCos[i] = (float) Math.cos(Math.toRadians(mounts[i].heading));
+			mountSin[i] = (float) Math.sin(Math.toRadians(mounts[i].heading));
+		}
+
+		this.maxWaitNanos = maxWaitMillis * 1000000L;
+		this.maxSkewNanos = maxSkewMillis * 1000000L;
+
+		this.latest = new ScanData[sensors];
+		this.latestTime = new long[sensors];
+		this.fresh = new boolean[sensors];
+		this.cycleScans = new ScanData[sensors];
+		this.cycleTime = new long[sensors];
+		this.geometry = new BeamGeometry[sensors];
+
+		this.maxBeams = maxBeamsPerSensor;
+		this.x = new float[sensors * maxBeamsPerSensor];
+		this.y = new float[sensors * maxBeamsPerSensor];
+		this.sensor = new byte[sensors * maxBeamsPerSensor];
+		this.virtualResolution = virtualResolution;
+		this.virtualRanges = new int[(3600000 + virtualResolution - 1) / virtualResolution];
+	}
+
+	/**
+	 * Hands a new scan of one sensor to the merger.  Older scans of the same
+	 * sensor that were not merged yet are replaced.
+	 *
+	 * @param sensorIndex index of the sensor in the mount array
+	 * @param scan the scan
+	 * @param timestampNanos acquisition time on the {@link System#nanoTime()} clock
+	 */
+	public synchronized void offer(int sensorIndex, ScanData scan, long timestampNanos) {
+		latest[sensorIndex] = scan;
+		latestTime[sensorIndex] = timestampNanos;
+		fresh[sensorIndex] = true;
+		notifyAll();
+	}
+
+	/**
+	 * Starts one reader thread per sensor that continuously calls
+	 * {@link LMS111#getScan()} and offers the result, timed by its estimated
+	 * acquisition time.  The sensors must already be connected and measuring.
+	 * A reader ends when its sensor disconnects; the merge then goes on
+	 * without that sensor.
+	 *
+	 * @param lms one connected sensor per mount, in mount order
+	 */
+	public synchronized void start(final LMS111[] lms) {
+		if(lms.length != sensors) throw new IllegalArgumentException();
+		if(running) return;
+
+		running = true;
+		readers = new Thread[sensors];
+		for(int i = 0; i < sensors; i++) {
+			final int index = i;
+			readers[i] = new Thread(new Runnable() {
+				public void run() {
+					while(running) {
+						ScanData scan = lms[index].getScan();
+						if(scan == null) {
+							/* a lost connection ends the stream of this sensor */
+							if(!lms[index].isConnected()) return;
+							continue;
+						}
+						long time = scan.getTimestamp();
+						offer(index, scan, time != ScanData.NO_TIMESTAMP
+								? time : System.nanoTime());
+					}
+				}
+			}, "ScanMerger-reader-" + i);
+			readers[i].setDaemon(true);
+			readers[i].start();
+		}
+	}
+
+	/**
+	 * Stops the reader threads started by {@link #start(LMS111[])}.
+	 */
+	public void stop() {
+		Thread[] threads;
+		synchronized(this) {
+			running = false;
+			threads = readers;
+			readers = null;
+		}
+		if(threads == null) return;
+		for(int i = 0; i < threads.length; i++) {
+			try {
+				threads[i].join(maxWaitNanos / 1000000L + 1);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Waits for the next cycle and merges it into the output buffers.
+	 *
+	 * @return number of merged points, 0 if no sensor delivered a scan in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public int merge() throws InterruptedException {
+		long reference = Long.MIN_VALUE;
+
+		synchronized(this) {
+			final long deadline = System.nanoTime() + maxWaitNanos;
+			long remaining = maxWaitNanos;
+			while(!allFresh() && remaining > 0) {
+				wait(remaining / 1000000L, (int) (remaining % 1000000L));
+				remaining = deadline - System.nanoTime();
+			}
+
+			for(int i = 0; i < sensors; i++) {
+				cycleScans[i] = fresh[i] ? latest[i] : null;
+				cycleTime[i] = latestTime[i];
+				fresh[i] = false;
+				if(cycleScans[i] != null && cycleTime[i] > reference)
+					reference = cycleTime[i];
+			}
+		}
+
+		count = 0;
+		contributors = 0;
+		timestamp = reference;
+		for(int i = 0; i < virtualRanges.length; i++) virtualRanges[i] = NO_RANGE;
+		if(reference == Long.MIN_VALUE) return 0;
+
+		for(int i = 0; i < sensors; i++) {
+			ScanData scan = cycleScans[i];
+			cycleScans[i] = null;
+			if(scan == null || reference - cycleTime[i] > maxSkewNanos) continue;
+
+			if(geometry[i] == null || !geometry[i].matches(scan))
+				geometry[i] = BeamGeometry.of(scan);
+			addScan(i, scan, geometry[i]);
+			contributors |= 1 << i;
+		}
+		return count;
+	}
+
+	private boolean allFresh() {
+		for(int i = 0; i < sensors; i++)
+			if(!fresh[i]) return false;
+		return true;
+	}
+
+	private void addScan(int index, ScanData scan, BeamGeometry geom) {
+		final int[] dist = scan.getDIST1();
+		final int beams = Math.min(Math.min(dist.length, geom.getCount()), maxBeams);
+		final float c = mountCos[index], s = mountSin[index];
+		final float ox = mountX[index], oy = mountY[index];
+
+		for(int b = 0; b < beams; b++) {
+			if(dist[b] <= 0) continue;
+
+			/* sensor frame -> robot frame */
+			float sx = dist[b] * geom.cos(b);
+			float sy = dist[b] * geom.sin(b);
+			float rx = ox + c * sx - s * sy;
+			float ry = oy + s * sx + c * sy;
+
+			x[count] = rx;
+			y[count] = ry;
+			sensor[count] = (byte) index;
+			count++;
+
+			/* bin by bearing from the robot origin, keep the closest return */
+			double bearing = Math.toDegrees(Math.atan2(ry, rx));
+			if(bearing < 0) bearing += 360.0;
+			int bin = (int) (bearing * 10000.0 / virtualResolution);
+			if(bin >= virtualRanges.length) bin = 0;
+			int range = (int) Math.sqrt(rx * rx + ry * ry);
+			if(virtualRanges[bin] == NO_RANGE || range < virtualRanges[bin])
+				virtualRanges[bin] = range;
+		}
+	}
+
+	/**
+	 * Returns the number of points produced by the last merge.
+	 * @return number of valid entries in the point buffers
+	 */
+	public int getPointCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the x coordinates of the merged points in mm, robot frame.
+	 * Only the first {@link #getPointCount()} entries are valid.
+	 * @return shared x buffer
+	 */
+	public float[] getX() {
+		return x;
+	}
+
+	/**
+	 * Returns the y coordinates of the merged points in mm, robot frame.
+	 * Only the first {@link #getPointCount()} entries are valid.
+	 * @return shared y buffer
+	 */
+	public float[] getY() {
+		return y;
+	}
+
+	/**
+	 * Returns which sensor each merged point came from.
+	 * @return shared sensor index buffer
+	 */
+	public byte[] getSensor() {
+		return sensor;
+	}
+
+	/**
+	 * Returns the merged virtual scan: for each bin, starting at the robot's
+	 * forward axis and going counter-clockwise, the closest range in mm seen
+	 * from the robot origin or {@link #NO_RANGE}.
+	 * @return shared range buffer
+	 */
+	public int[] getVirtualRanges() {
+		return virtualRanges;
+	}
+
+	/**
+	 * Returns the bin width of the virtual scan.
+	 * @return bin width in 1/10,000 degrees
+	 */
+	public int getVirtualResolution() {
+		return virtualResolution;
+	}
+
+	/**
+	 * Returns the timestamp of the newest scan in the last merge.
+	 * @return time on the {@link System#nanoTime()} clock
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Returns a bit mask of the sensors that contributed to the last merge.
+	 * @return bit i is set if sensor i was merged
+	 */
+	public int getContributors() {
+		return contributors;
+	}
+}
@@ -0,0 +1,162 @@
+package lidar;
+
+/**
+ * Splits a scan into clusters of neighbouring points.
+ *
+ * Consecutive beams belong to the same cluster while the distance between
+ * their points stays below a breakpoint that grows with the range, since
+ * neighbouring beams spread apart with distance.  Each cluster is reduced to
+ * its centroid and extent.  One pass over the scan into fixed size arrays.
+ *
+ * Positions are in the sensor frame in mm, x forward and y left.
+ */
+public class ScanSegmenter {
+	private final int capacity;
+	private final float minGap;
+	private final float gapFactor;
+	private final int minPoints;
+	private final float maxWidth;
+
+	private BeamGeometry geometry;
+	private float angleStep;
+
+	private final float[] x;
+	private final float[] y;
+	private final float[] width;
+	private final int[] first;
+	private final int[] last;
+	private int count;
+
+	/**
+	 * Creates a segmenter.
+	 *
+	 * @param capacity most clusters kept per scan
+	 * @param minGap breakpoint in mm at short range
+	 * @param gapFactor breakpoint growth, multiples of the spacing of
+	 * 			neighbouring beams at the current range
+	 * @param minPoints fewest points of a cluster
+	 * @param maxWidth widest cluster in mm; wider ones are walls, not objects
+	 */
+	public ScanSegmenter(int capacity, float minGap, float gapFactor, int minPoints,
+			float maxWidth) {
+		this.capacity = capacity;
+		this.minGap = minGap;
+		this.gapFactor = gapFactor;
+		this.minPoints = minPoints;
+		this.maxWidth = maxWidth;
+		x = new float[capacity];
+		y = new float[capacity];
+		width = new float[capacity];
+		first = new int[capacity];
+		last = new int[capacity];
+	}
+
+	/**
+	 * Segments a scan.
+	 *
+	 * @param scan the scan
+	 * @return number of clusters
+	 */
+	public int segment(ScanData scan) {
+		return segment(scan, null);
+	}
+
+	/**
+	 * Segments the selected beams of a scan, e.g. the foreground of a
+	 * {@link BackgroundModel}.  Unselected beams split clusters like invalid
+	 * ones.
+	 *
+	 * @param scan the scan
+	 * @param mask per beam selection, null for all beams
+	 * @return number of clusters
+	 */
+	public int segment(ScanData scan, boolean[] mask) {
+		if(geometry == null || !geometry.matches(scan)) {
+			geometry = BeamGeometry.of(scan);
+			angleStep = (float) Math.toRadians(geometry.getAngleStep() / 10000.0);
+		}
+		final int[] dist = scan.getDIST1();
+		int n = Math.min(dist.length, geometry.getCount());
+		if(mask != null) n = Math.min(n, mask.length);
+		count = 0;
+
+		int start = -1, points = 0;
+		float sx = 0, sy = 0, fx = 0, fy = 0, lx = 0, ly = 0;
+		for(int i = 0; i <= n; i++) {
+			final boolean valid = i < n && dist[i] > 0 && (mask == null || mask[i]);
+			float px = 0, py = 0;
+			if(valid) {
+				px = dist[i] * geometry.cos(i);
+				py = dist[i] * geometry.sin(i);
+				if(start >= 0) {
+					float gap = Math.max(minGap, gapFactor * dist[i] * angleStep);
+					float dx = px - lx, dy = py - ly;
+					if(dx * dx + dy * dy <= gap * gap) {
+						sx += px;
+						sy += py;
+						lx = px;
+						ly = py;
+						points++;
+						continue;
+					}
+				}
+			}
+			if(start >= 0) emit(start, i - 1, points, sx, sy, fx, fy, lx, ly);
+			start = -1;
+			if(valid) {
+				start = i;
+				points = 1;
+				sx = fx = lx = px;
+				sy = fy = ly = py;
+			}
+		}
+		return count;
+	}
+
+	private void emit(int from, int to, int points, float sx, float sy, float fx, float fy,
+			float lx, float ly) {
+		if(points < minPoints || count >= capacity) return;
+		float w = (float) Math.hypot(lx - fx, ly - fy);
+		if(w > maxWidth) return;
+		x[count] = sx / points;
+		y[count] = sy / points;
+		width[count] = w;
+		first[count] = from;
+		last[count] = to;
+		count++;
+	}
+
+	/** @return number of clusters in the last scan */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the centroids of the last scan.  The array is reused.
+	 * @return x coordinates in mm
+	 */
+	public float[] getX() {
+		return x;
+	}
+
+	/**
+	 * Returns the centroids of the last scan.  The array is reused.
+	 * @return y coordinates in mm
+	 */
+	public float[] getY() {
+		return y;
+	}
+
+	/** @return distance in mm between the first and the last point */
+	public float getWidth(int cluster) {
+		return width[cluster];
+	}
+
+	public int getFirstBeam(int cluster) {
+		return first[cluster];
+	}
+
+	public int getLastBeam(int cluster) {
+		return last[cluster];
+	}
+}
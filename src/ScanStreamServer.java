@@ -0,0 +1,382 @@
+package lidar;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streams scans to any number of viewers over plain TCP.
+ *
+ * Register the server as a {@link ScanListener} on an existing scan source;
+ * viewers then connect to it instead of opening their own connection to the
+ * sensor.  Each scan is encoded once into a compact binary frame in a direct
+ * buffer.  Every client writes from its own duplicate of that buffer, so the
+ * frame bytes are shared and never copied per client.  One selector thread
+ * serves all clients.
+ *
+ * Frame buffers come from a ring that is reused: a frame counts the clients
+ * still writing it and is encoded over only once none is left.  The ring
+ * grows only while slow clients keep all frames busy, so in steady state
+ * publishing allocates nothing.
+ *
+ * A client that cannot keep up finishes the frame it is writing and then
+ * continues with the newest frame; the frames published in between are
+ * skipped for that client only.
+ *
+ * Frame layout, big endian:
+ * <pre>
+ *  0 int    magic 0x4C4D5353 ("LMSS")
+ *  4 int    frame length in bytes, header included
+ *  8 short  version, 1
+ * 10 short  flags, bit 0: remission follows the ranges
+ * 12 int    source id given to the server
+ * 16 int    device scan counter, -1 if unknown
+ * 20 long   scan timestamp, System.nanoTime() clock of the server
+ * 28 int    start angle in 1/10,000 degrees
+ * 32 int    angle step in 1/10,000 degrees
+ * 36 int    number of beams n
+ * 40 n x unsigned short  ranges in mm, saturated at 65535
+ *    n x unsigned short  remission, if flagged
+ * </pre>
+ */
+public class ScanStreamServer implements ScanListener, Runnable {
+	public static final int MAGIC = 0x4C4D5353;
+	public static final int VERSION = 1;
+	public static final int HEADER_LENGTH = 40;
+	public static final int FLAG_RSSI = 1;
+
+	/* frames allocated up front, and the beams they are sized for */
+	private static final int RING_SIZE = 4;
+	private static final int MAX_BEAMS = 1081;
+
+	private final int source;
+	private final boolean withRssi;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+
+	/* reusable frames; only the publishing thread changes the ring */
+	private Frame[] ring;
+	/* newest frame not yet picked up by the selector */
+	private final AtomicReference<Frame> pending = new AtomicReference<Frame>();
+
+	private Thread thread;
+	private volatile boolean running;
+	private volatile int clients;
+	private volatile long framesPublished;
+	private volatile long framesDelivered;
+	private volatile long framesSkipped;
+
+	/**
+	 * Opens the listening port on the loopback interface.
+	 *
+	 * @param port port to listen on, 0 for any free port
+	 * @param source id written into every frame
+	 * @param withRssi true to include remission values
+	 * @throws IOException if the port cannot be opened
+	 */
+	public ScanStreamServer(int port, int source, boolean withRssi) throws IOException {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), source, withRssi);
+	}
+
+	/**
+	 * Opens the listening port.
+	 *
+	 * @param address address to listen on
+	 * @param source id written into every frame
+	 * @param withRssi true to include remission values
+	 * @throws IOException if the port cannot be opened
+	 */
+	public ScanStreamServer(InetSocketAddress address, int source, boolean withRssi)
+			throws IOException {
+		this.source = source;
+		this.withRssi = withRssi;
+		this.ring = new Frame[RING_SIZE];
+		for(int i = 0; i < RING_SIZE; i++)
+			ring[i] = new Frame(HEADER_LENGTH + MAX_BEAMS * (withRssi ? 4 : 2));
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		server.bind(address);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Starts serving on a daemon thread.
+	 */
+	public synchronized void start() {
+		if(running) return;
+		running = true;
+		thread = new Thread(this, "ScanStreamServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops serving and closes the port and all connections.
+	 */
+	public void stop() {
+		running = false;
+		selector.wakeup();
+		if(thread != null) {
+			try {
+				thread.join(1000);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			for(SelectionKey key : selector.keys()) key.channel().close();
+			selector.close();
+		} catch (final IOException e) {}
+	}
+
+	/**
+	 * Encodes a scan and queues it for all clients.  Never blocks on clients.
+	 */
+	public void scanReceived(ScanData scan) {
+		if(clients == 0) return;
+		final Frame frame = claim(length(scan, withRssi));
+		encode(scan, source, withRssi, frame.buffer);
+		/* a frame the selector has not picked up yet is replaced for everyone */
+		final Frame replaced = pending.getAndSet(frame);
+		if(replaced != null) replaced.release();
+		framesPublished++;
+		selector.wakeup();
+	}
+
+	/* a frame no client is writing, held once for the publisher */
+	private Frame claim(int length) {
+		for(int i = 0; i < ring.length; i++) {
+			final Frame f = ring[i];
+			if(f.users.compareAndSet(0, 1)) {
+				if(f.buffer.capacity() < length) f.buffer = ByteBuffer.allocateDirect(length);
+				return f;
+			}
+		}
+		/* every frame is still being written to a slow client */
+		final Frame[] grown = new Frame[ring.length * 2];
+		System.arraycopy(ring, 0, grown, 0, ring.length);
+		for(int i = ring.length; i < grown.length; i++)
+			grown[i] = new Frame(Math.max(length, ring[0].buffer.capacity()));
+		final Frame f = grown[ring.length];
+		f.users.set(1);
+		ring = grown;
+		return f;
+	}
+
+	/**
+	 * Encodes a scan into a frame.
+	 *
+	 * @param scan the scan
+	 * @param source id of the scan source
+	 * @param withRssi true to include remission values, if the scan has them
+	 * @return the frame in a direct buffer, positioned at 0
+	 */
+	public static ByteBuffer encode(ScanData scan, int source, boolean withRssi) {
+		final ByteBuffer frame = ByteBuffer.allocateDirect(length(scan, withRssi));
+		encode(scan, source, withRssi, frame);
+		return frame;
+	}
+
+	private static int length(ScanData scan, boolean withRssi) {
+		final int n = scan.getDIST1().length;
+		return HEADER_LENGTH + n * (hasRssi(scan, withRssi) ? 4 : 2);
+	}
+
+	private static boolean hasRssi(ScanData scan, boolean withRssi) {
+		final int[] rssi = scan.getRSSI1();
+		return withRssi && rssi != null && rssi.length >= scan.getDIST1().length;
+	}
+
+	/* encodes into a buffer large enough for the frame, leaving it flipped */
+	private static void encode(ScanData scan, int source, boolean withRssi, ByteBuffer frame) {
+		final int[] dist = scan.getDIST1();
+		final int[] rssi = scan.getRSSI1();
+		final int n = dist.length;
+		final boolean hasRssi = hasRssi(scan, withRssi);
+		final int length = HEADER_LENGTH + n * (hasRssi ? 4 : 2);
+
+		frame.clear();
+		frame.putInt(MAGIC)
+			.putInt(length)
+			.putShort((short) VERSION)
+			.putShort((short) (hasRssi ? FLAG_RSSI : 0))
+			.putInt(source)
+			.putInt((int) scan.getScanCounter())
+			.putLong(scan.getTimestamp() != ScanData.NO_TIMESTAMP
+					? scan.getTimestamp() : scan.getReceiveTime())
+			.putInt(scan.getStartAngle())
+			.putInt(scan.getAngleStepWidth())
+			.putInt(n);
+		for(int i = 0; i < n; i++) frame.putShort((short) Math.min(Math.max(dist[i], 0), 0xFFFF));
+		if(hasRssi)
+			for(int i = 0; i < n; i++) frame.putShort((short) Math.min(Math.max(rssi[i], 0), 0xFFFF));
+		frame.flip();
+	}
+
+	public void run() {
+		try {
+			while(running) {
+				selector.select();
+				deliver();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					try {
+						if(!key.isValid()) continue;
+						if(key.isAcceptable()) accept();
+						else {
+							if(key.isReadable()) read(key);
+							if(key.isValid() && key.isWritable()) write(key);
+						}
+					} catch (final IOException e) {
+						close(key);
+					}
+				}
+			}
+		} catch (final IOException e) {
+			if(running) e.printStackTrace();
+		}
+	}
+
+	/* hands a new frame to every client, replacing frames not yet started */
+	private void deliver() {
+		final Frame frame = pending.getAndSet(null);
+		if(frame == null) return;
+		framesDelivered++;
+
+		for(SelectionKey key : selector.keys()) {
+			if(!(key.attachment() instanceof Client) || !key.isValid()) continue;
+			Client c = (Client) key.attachment();
+			frame.users.incrementAndGet();
+			if(c.next != null) {
+				c.next.release();
+				framesSkipped++;
+			}
+			c.next = frame;
+			try {
+				write(key);
+			} catch (final IOException e) {
+				close(key);
+			}
+		}
+		/* the publisher's hold */
+		frame.release();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel ch = server.accept();
+		if(ch == null) return;
+		ch.configureBlocking(false);
+		ch.socket().setTcpNoDelay(true);
+		ch.register(selector, SelectionKey.OP_READ, new Client());
+		clients++;
+	}
+
+	/* viewers send nothing; detect the close */
+	private void read(SelectionKey key) throws IOException {
+		Client c = (Client) key.attachment();
+		c.in.clear();
+		if(((SocketChannel) key.channel()).read(c.in) < 0) close(key);
+	}
+
+	private void write(SelectionKey key) throws IOException {
+		Client c = (Client) key.attachment();
+		SocketChannel ch = (SocketChannel) key.channel();
+		while(true) {
+			if(c.current == null || !c.view.hasRemaining()) {
+				if(c.current != null) {
+					c.current.release();
+					c.current = null;
+				}
+				if(c.next == null) break;
+				/* the client's own view of the shared frame */
+				c.current = c.next;
+				c.view = c.next.buffer.duplicate();
+				c.next = null;
+			}
+			ch.write(c.view);
+			if(c.view.hasRemaining()) break;
+		}
+		key.interestOps(c.current == null ? SelectionKey.OP_READ
+				: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	private void close(SelectionKey key) {
+		if(key.attachment() instanceof Client && key.isValid()) {
+			clients--;
+			/* give back the frames the client still held */
+			Client c = (Client) key.attachment();
+			if(c.current != null) c.current.release();
+			if(c.next != null) c.next.release();
+			c.current = null;
+			c.next = null;
+		}
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (final IOException e) {}
+	}
+
+	/** @return number of connected viewers */
+	public int getClientCount() {
+		return clients;
+	}
+
+	/** @return frames encoded since the server was created */
+	public long getFramesPublished() {
+		return framesPublished;
+	}
+
+	/**
+	 * Returns the number of frames handed to the clients.  Frames published
+	 * faster than the selector thread picks them up are replaced for all
+	 * clients and counted only in {@link #getFramesPublished()}.
+	 * @return frames delivered
+	 */
+	public long getFramesDelivered() {
+		return framesDelivered;
+	}
+
+	/** @return frames replaced before a slow client started writing them, per client */
+	public long getFramesSkipped() {
+		return framesSkipped;
+	}
+
+	/* connection state */
+	private static class Client {
+		final ByteBuffer in = ByteBuffer.allocate(256);
+		/* frame being written, through view, and the newest frame waiting behind it */
+		Frame current;
+		ByteBuffer view;
+		Frame next;
+	}
+
+	/* a reusable frame buffer and the number of holders: publisher, selector, clients */
+	private static class Frame {
+		final AtomicInteger users = new AtomicInteger();
+		ByteBuffer buffer;
+
+		Frame(int capacity) {
+			buffer = ByteBuffer.allocateDirect(capacity);
+		}
+
+		void release() {
+			users.decrementAndGet();
+		}
+	}
+}
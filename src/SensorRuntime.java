@@ -0,0 +1,310 @@
+package lidar;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the I/O of many LMS111 units, one small scope of threads per sensor.
+ *
+ * Each sensor gets three tasks: a scan reader that feeds a
+ * {@link ScanListener}, a command task that executes submitted commands one
+ * after another, and a health task that polls {@link LMS111#readStatus()}, or
+ * picks up the status polled on the sensor's {@link ControlChannel} if one is
+ * open.  The three tasks form a scope in the sense of structured concurrency:
+ * they are started together, if one of them fails the others are cancelled and the
+ * connection is closed, and {@link Sensor#close()} only returns once all of
+ * them have ended.
+ *
+ * On JDK 21 and later the tasks run on virtual threads, so a blocked socket
+ * read does not hold a platform thread; LMS111 guards its I/O with locks
+ * rather than monitors so such reads don't pin their carrier.  The footprint
+ * of both models can be compared with tools/SensorRuntimeBenchmark.  On
+ * older JDKs, or when asked to, platform threads are used instead.  The
+ * threads are created through reflection so this class still compiles and
+ * runs on older JDKs.
+ */
+public class SensorRuntime {
+	/* consecutive failed scans after which the reader gives up */
+	private static final int MAX_SCAN_ERRORS = 50;
+
+	private static final ThreadFactory VIRTUAL_FACTORY = createVirtualFactory();
+
+	private final ThreadFactory factory;
+	private final boolean virtual;
+	private final List<Sensor> sensors = new ArrayList<Sensor>();
+
+	/**
+	 * Creates a runtime using virtual threads when the JDK supports them.
+	 */
+	public SensorRuntime() {
+		this(true);
+	}
+
+	/**
+	 * Creates a runtime.
+	 * @param preferVirtual use virtual threads if the JDK supports them,
+	 * 			otherwise always use platform threads
+	 */
+	public SensorRuntime(boolean preferVirtual) {
+		this.virtual = preferVirtual && VIRTUAL_FACTORY != null;
+		this.factory = this.virtual ? VIRTUAL_FACTORY : new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Reports whether the running JDK offers virtual threads.
+	 * @return true on JDK 21 and later
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return VIRTUAL_FACTORY != null;
+	}
+
+	private static ThreadFactory createVirtualFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (final Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reports whether this runtime uses virtual threads.
+	 * @return true for virtual threads, false for platform threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Starts the scope for one sensor.  The sensor must already be connected
+	 * and measuring.
+	 *
+	 * @param lms the connected sensor
+	 * @param listener receives every scan
+	 * @param healthPeriodMillis delay between health polls, 0 to disable
+	 * @return handle of the running scope
+	 */
+	public Sensor start(LMS111 lms, ScanListener listener, long healthPeriodMillis) {
+		Sensor sensor = new Sensor(lms, listener, healthPeriodMillis);
+		synchronized(sensors) {
+			sensors.add(sensor);
+		}
+		sensor.fork();
+		return sensor;
+	}
+
+	/**
+	 * Returns the number of sensors started on this runtime and not closed.
+	 * @return number of running scopes
+	 */
+	public int getSensorCount() {
+		synchronized(sensors) {
+			return sensors.size();
+		}
+	}
+
+	/**
+	 * Closes every sensor scope and waits for their tasks to end.
+	 */
+	public void close() {
+		List<Sensor> open;
+		synchronized(sensors) {
+			open = new ArrayList<Sensor>(sensors);
+		}
+		for(Sensor sensor : open) sensor.shutdown(null);
+		for(Sensor sensor : open) sensor.close();
+	}
+
+	/**
+	 * The scope of tasks serving one sensor.
+	 */
+	public class Sensor {
+		private final LMS111 lms;
+		private final ScanListener listener;
+		private final long healthPeriodMillis;
+		private final BlockingQueue<Runnable> commands = new LinkedBlockingQueue<Runnable>();
+		private final AtomicLong scans = new AtomicLong();
+		private final Thread[] tasks = new Thread[3];
+
+		private volatile boolean shutdown;
+		private volatile Throwable failure;
+		private volatile SensorStatus status;
+
+		private Sensor(LMS111 lms, ScanListener listener, long healthPeriodMillis) {
+			this.lms = lms;
+			this.listener = listener;
+			this.healthPeriodMillis = healthPeriodMillis;
+		}
+
+		private void fork() {
+			tasks[0] = task("reader", new Runnable() {
+				public void run() {
+					readScans();
+				}
+			});
+			tasks[1] = task("commands", new Runnable() {
+				public void run() {
+					runCommands();
+				}
+			});
+			tasks[2] = healthPeriodMillis <= 0 ? null : task("health", new Runnable() {
+				public void run() {
+					pollHealth();
+				}
+			});
+
+			for(int i = 0; i < tasks.length; i++)
+				if(tasks[i] != null) tasks[i].start();
+		}
+
+		private Thread task(String name, final Runnable body) {
+			Thread t = factory.newThread(new Runnable() {
+				public void run() {
+					try {
+						body.run();
+					} catch (final Throwable e) {
+						shutdown(e);
+					}
+				}
+			});
+			t.setName("LMS111-" + lms.getHostname() + ":" + lms.getPort() + "-" + name);
+			return t;
+		}
+
+		private void readScans() {
+			int errors = 0;
+			while(!shutdown) {
+				ScanData scan = lms.getScan();
+				if(shutdown) return;
+
+				if(scan == null) {
+					if(++errors >= MAX_SCAN_ERRORS || !lms.isConnected())
+						throw new IllegalStateException("scan stream lost");
+					continue;
+				}
+				errors = 0;
+				scans.incrementAndGet();
+				listener.scanReceived(scan);
+			}
+		}
+
+		private void runCommands() {
+			try {
+				while(!shutdown)
+					commands.take().run();
+			} catch (final InterruptedException e) {
+				/* cancelled */
+			}
+		}
+
+		private void pollHealth() {
+			try {
+				while(!shutdown) {
+					/* with a control channel the status is already being polled */
+					SensorStatus s = lms.getControlChannel() != null
+							? lms.getLatestStatus() : lms.readStatus();
+					if(s != null) status = s;
+					Thread.sleep(healthPeriodMillis);
+				}
+			} catch (final InterruptedException e) {
+				/* cancelled */
+			}
+		}
+
+		/* cancel all tasks of the scope, keeping the first failure */
+		private void shutdown(Throwable cause) {
+			synchronized(this) {
+				if(shutdown) return;
+				shutdown = true;
+				failure = cause;
+			}
+			for(int i = 0; i < tasks.length; i++)
+				if(tasks[i] != null && tasks[i] != Thread.currentThread())
+					tasks[i].interrupt();
+			/* a blocked socket read only returns once the socket is closed */
+			if(lms.isConnected()) lms.disconnect();
+		}
+
+		/**
+		 * Queues a command to run on this sensor's command task.  Commands run
+		 * one at a time in submission order and may use the LMS111 freely.
+		 *
+		 * @param command the command to run
+		 * @return false if the scope has already shut down
+		 */
+		public boolean submit(Runnable command) {
+			if(shutdown) return false;
+			return commands.offer(command);
+		}
+
+		/**
+		 * Returns the latest health snapshot.
+		 * @return latest status, null if none was read yet
+		 */
+		public SensorStatus getStatus() {
+			return status;
+		}
+
+		/**
+		 * Returns the number of scans delivered to the listener.
+		 * @return scan count
+		 */
+		public long getScanCount() {
+			return scans.get();
+		}
+
+		/**
+		 * Returns the error that shut the scope down.
+		 * @return the failure, null if none occurred
+		 */
+		public Throwable getFailure() {
+			return failure;
+		}
+
+		/**
+		 * Reports whether the scope is still running.
+		 * @return false once shut down
+		 */
+		public boolean isRunning() {
+			return !shutdown;
+		}
+
+		public LMS111 getLMS111() {
+			return lms;
+		}
+
+		/**
+		 * Shuts the scope down, closes the connection and waits for all tasks
+		 * to end.
+		 */
+		public void close() {
+			shutdown(null);
+			for(int i = 0; i < tasks.length; i++) {
+				if(tasks[i] == null || tasks[i] == Thread.currentThread()) continue;
+				try {
+					tasks[i].join(TimeUnit.SECONDS.toMillis(5));
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			synchronized(sensors) {
+				sensors.remove(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package lidar;
+
+/**
+ * Snapshot of the health information reported by an LMS111.
+ */
+public class SensorStatus {
+	/** Operating status code reported when the unit is ready to scan */
+	public static final int READY = 7;
+
+	private final int statusCode;
+	private final boolean tempGood;
+	private final int contaminationLevel;
+	private final long timestamp;
+
+	/**
+	 * @param statusCode operating status code, see STlms
+	 * @param tempGood true if the unit is within its operating temperature
+	 * @param contaminationLevel contamination level, see LCMstate
+	 * @param timestamp time of the query on the {@link System#nanoTime()} clock
+	 */
+	public SensorStatus(int statusCode, boolean tempGood,
+			int contaminationLevel, long timestamp) {
+		this.statusCode = statusCode;
+		this.tempGood = tempGood;
+		this.contaminationLevel = contaminationLevel;
+		this.timestamp = timestamp;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	public boolean isTempGood() {
+		return tempGood;
+	}
+
+	public int getContaminationLevel() {
+		return contaminationLevel;
+	}
+
+	/**
+	 * Returns when this snapshot was taken.
+	 * @return time on the {@link System#nanoTime()} clock
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Reports whether the unit was ready to scan.
+	 * @return true if the status code is {@link #READY}
+	 */
+	public boolean isScannable() {
+		return statusCode == READY;
+	}
+
+	public String toString() {
+		return "Status: " + statusCode + " Temp good: " + tempGood
+				+ " Contamination: " + contaminationLevel;
+	}
+}
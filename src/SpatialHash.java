@@ -0,0 +1,99 @@
+package lidar;
+
+import java.util.Arrays;
+
+/**
+ * Bins points of the plane into square cells for neighbourhood queries.
+ *
+ * Cells are hashed into a power of two number of buckets, so far apart cells
+ * may share a bucket and callers still test the distance of every point they
+ * get.  Building is a counting sort of the point indices by bucket; the
+ * points of bucket b are {@link #item(int)} for k in
+ * [{@link #start(int)}, {@link #end(int)}).  The arrays grow on demand and
+ * are reused by every build.
+ */
+final class SpatialHash {
+	private final float cellSize;
+	private final int minBuckets;
+	private int mask;
+	/* points of bucket b are items[start[b] .. start[b + 1]) */
+	private int[] start;
+	private int[] items = new int[0];
+	private int[] itemBucket = new int[0];
+
+	/**
+	 * @param cellSize width of a cell in mm
+	 * @param minBuckets fewest buckets, rounded up to a power of two
+	 */
+	SpatialHash(float cellSize, int minBuckets) {
+		if(cellSize <= 0 || minBuckets < 1) throw new IllegalArgumentException();
+		this.cellSize = cellSize;
+		int buckets = Integer.highestOneBit(minBuckets);
+		this.minBuckets = buckets < minBuckets ? buckets << 1 : buckets;
+		this.start = new int[this.minBuckets + 1];
+		this.mask = this.minBuckets - 1;
+	}
+
+	/**
+	 * Indexes the points 0 .. count - 1.
+	 */
+	void build(float[] x, float[] y, int count) {
+		build(x, y, null, count);
+	}
+
+	/**
+	 * Indexes the points whose indices are listed in slots[0 .. count).
+	 */
+	void build(float[] x, float[] y, int[] slots, int count) {
+		if(items.length < count) {
+			items = new int[count];
+			itemBucket = new int[count];
+			int buckets = Math.max(minBuckets, Integer.highestOneBit(count) * 2);
+			if(buckets > mask + 1) {
+				start = new int[buckets + 1];
+				mask = buckets - 1;
+			}
+		}
+
+		Arrays.fill(start, 0);
+		for(int k = 0; k < count; k++) {
+			int i = slots == null ? k : slots[k];
+			int b = bucket(cell(x[i]), cell(y[i]));
+			itemBucket[k] = b;
+			start[b + 1]++;
+		}
+		for(int b = 0; b <= mask; b++) start[b + 1] += start[b];
+		for(int k = count - 1; k >= 0; k--)
+			items[--start[itemBucket[k] + 1]] = slots == null ? k : slots[k];
+		/* start[b + 1] now holds the start of bucket b; shift back */
+		System.arraycopy(start, 1, start, 0, mask + 1);
+		start[mask + 1] = count;
+	}
+
+	int cell(float v) {
+		return (int) Math.floor(v / cellSize);
+	}
+
+	int bucket(int cx, int cy) {
+		return (cx * 73856093 ^ cy * 19349663) & mask;
+	}
+
+	/** @return position of the first point of a bucket */
+	int start(int bucket) {
+		return start[bucket];
+	}
+
+	/** @return position after the last point of a bucket */
+	int end(int bucket) {
+		return start[bucket + 1];
+	}
+
+	/** @return index of the point at a position */
+	int item(int k) {
+		return items[k];
+	}
+
+	float getCellSize() {
+		return cellSize;
+	}
+}
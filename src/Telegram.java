@@ -0,0 +1,157 @@
+package lidar;
+
+/**
+ * A CoLa A command telegram, framed and encoded as bytes ready for the wire.
+ *
+ * Fixed commands are built once and reused for every send.  Commands with
+ * parameters reuse one buffer that is rewritten in place, so sending never
+ * concatenates strings or encodes characters.
+ */
+class Telegram {
+	static final byte STX = 0x02;
+	static final byte ETX = 0x03;
+
+	private final byte[] buf;
+	private int length;
+
+	/**
+	 * Creates an empty, reusable telegram.
+	 * @param capacity largest telegram size in bytes, including framing
+	 */
+	Telegram(final int capacity) {
+		this.buf = new byte[capacity];
+	}
+
+	/**
+	 * Creates a finished telegram for a fixed command.
+	 * @param command the command without framing, ASCII only
+	 */
+	Telegram(final String command) {
+		this(command.length() + 3);
+		begin(command).end();
+	}
+
+	/**
+	 * Starts a new command, discarding the previous content.
+	 * @param prefix the fixed part of the command, ASCII only
+	 * @return this telegram
+	 */
+	Telegram begin(final String prefix) {
+		length = 0;
+		buf[length++] = STX;
+		return append(prefix);
+	}
+
+	/**
+	 * Appends ASCII text.
+	 * @param text the text
+	 * @return this telegram
+	 */
+	Telegram append(final String text) {
+		final int n = text.length();
+		for(int i = 0; i < n; i++)
+			buf[length++] = (byte) text.charAt(i);
+		return this;
+	}
+
+	/**
+	 * Appends a space followed by a signed decimal number, with "+" in front
+	 * of non-negative values as the specification requires.
+	 * @param num the number
+	 * @return this telegram
+	 */
+	Telegram appendSigned(final int num) {
+		buf[length++] = ' ';
+		long v = num;
+		if(v >= 0) {
+			buf[length++] = '+';
+		} else {
+			buf[length++] = '-';
+			v = -v;
+		}
+		return appendDigits(v);
+	}
+
+	/**
+	 * Appends a space followed by an unsigned decimal number.
+	 * @param num the number, must not be negative
+	 * @return this telegram
+	 */
+	Telegram appendUnsigned(final int num) {
+		buf[length++] = ' ';
+		return appendDigits(num);
+	}
+
+	private Telegram appendDigits(long v) {
+		final int start = length;
+		do {
+			buf[length++] = (byte) ('0' + (int) (v % 10));
+			v /= 10;
+		} while(v != 0);
+
+		/* digits were written least significant first */
+		for(int i = start, j = length - 1; i < j; i++, j--) {
+			final byte t = buf[i];
+			buf[i] = buf[j];
+			buf[j] = t;
+		}
+		return this;
+	}
+
+	/**
+	 * Closes the telegram.  The trailing NUL matches what this driver has
+	 * always sent after ETX.
+	 * @return this telegram
+	 */
+	Telegram end() {
+		buf[length++] = ETX;
+		buf[length++] = 0x00;
+		return this;
+	}
+
+	/**
+	 * Checks whether a received telegram answers this command, i.e. carries
+	 * the same command name as its second token.  Error replies (sFA) answer
+	 * any command.
+	 *
+	 * @param reply received telegram without framing
+	 * @param len length of the telegram
+	 * @return true if it is the reply to this command
+	 */
+	boolean isAnsweredBy(final byte[] reply, final int len) {
+		if(len >= 3 && reply[0] == 's' && reply[1] == 'F' && reply[2] == 'A')
+			return true;
+
+		/* skip the command type, e.g. sRN in the command and sRA in the reply */
+		int c = 1;
+		while(c < length && buf[c] != ' ') c++;
+		int r = 0;
+		while(r < len && reply[r] != ' ') r++;
+		c++;
+		r++;
+
+		while(c < length && buf[c] != ' ' && buf[c] != ETX) {
+			if(r >= len || reply[r] != buf[c]) return false;
+			c++;
+			r++;
+		}
+		return r == len || reply[r] == ' ';
+	}
+
+	byte[] array() {
+		return buf;
+	}
+
+	int length() {
+		return length;
+	}
+
+	/**
+	 * Returns the command text without framing, for messages and debugging.
+	 */
+	public String toString() {
+		int end = length;
+		while(end > 1 && (buf[end - 1] == 0x00 || buf[end - 1] == ETX)) end--;
+		return new String(buf, 1, end - 1, java.nio.charset.StandardCharsets.US_ASCII);
+	}
+}
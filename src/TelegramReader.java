@@ -0,0 +1,187 @@
+package lidar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a byte stream into STX/ETX framed telegrams.
+ *
+ * Bytes are pulled from the stream in bulk and scanned for the framing
+ * characters.  Garbage between telegrams is skipped, a telegram that is
+ * interrupted by a new STX is dropped in favour of the new one, and a
+ * telegram longer than the configured maximum is discarded up to its ETX,
+ * so a corrupted stream costs at most one telegram and never unbounded
+ * memory.  Each of these events is counted.
+ *
+ * Reads give up at a deadline.  For sockets the deadline relies on the
+ * socket's read timeout (SO_TIMEOUT), which the owner must set; a read that
+ * times out drops any partial telegram and resynchronizes on the next STX.
+ */
+public class TelegramReader {
+	private static final byte STX = 0x02;
+	private static final byte ETX = 0x03;
+
+	private final InputStream in;
+	private final byte[] buf;
+	private int pos;
+	private int limit;
+
+	private final byte[] frame;
+	private int length;
+	/* true while inside a telegram, between STX and ETX */
+	private boolean inFrame;
+	/* true while skipping the rest of an oversized telegram */
+	private boolean discarding;
+
+	private long frames;
+	private long skippedBytes;
+	private long resyncs;
+	private long oversized;
+	private long timeouts;
+
+	/**
+	 * Creates a reader.
+	 *
+	 * @param in the stream to read from
+	 * @param maxTelegram largest accepted telegram in bytes, without framing
+	 */
+	public TelegramReader(final InputStream in, final int maxTelegram) {
+		this(in, maxTelegram, 16 * 1024);
+	}
+
+	/**
+	 * Creates a reader.
+	 *
+	 * @param in the stream to read from
+	 * @param maxTelegram largest accepted telegram in bytes, without framing
+	 * @param bufferSize number of bytes requested from the stream per read
+	 */
+	public TelegramReader(final InputStream in, final int maxTelegram, final int bufferSize) {
+		if(maxTelegram <= 0 || bufferSize <= 0) throw new IllegalArgumentException();
+		this.in = in;
+		this.buf = new byte[bufferSize];
+		this.frame = new byte[maxTelegram];
+	}
+
+	/**
+	 * Reads the next complete telegram into the frame buffer.
+	 *
+	 * @param timeoutMillis longest time to wait for the telegram, 0 for no
+	 * 			limit besides the stream's own timeout
+	 * @return length of the telegram in {@link #getFrame()}, or -1 if the
+	 * 			deadline passed first
+	 * @throws EOFException if the stream ended
+	 * @throws IOException on any other read error
+	 */
+	public int read(final long timeoutMillis) throws IOException {
+		final long deadline = timeoutMillis > 0
+				? System.nanoTime() + timeoutMillis * 1000000L : Long.MAX_VALUE;
+
+		while(true) {
+			if(pos == limit) {
+				if(timeoutMillis > 0 && System.nanoTime() - deadline >= 0)
+					return timedOut();
+				try {
+					limit = in.read(buf, 0, buf.length);
+				} catch (final InterruptedIOException e) {
+					/* includes SocketTimeoutException */
+					limit = 0;
+					pos = 0;
+					return timedOut();
+				}
+				pos = 0;
+				if(limit < 0) {
+					limit = 0;
+					throw new EOFException("telegram stream ended");
+				}
+				continue;
+			}
+
+			final byte b = buf[pos++];
+
+			if(b == STX) {
+				/* a new telegram starts before the last one ended */
+				if(inFrame || discarding) resyncs++;
+				inFrame = true;
+				discarding = false;
+				length = 0;
+			} else if(b == ETX && (inFrame || discarding)) {
+				final boolean complete = inFrame;
+				inFrame = false;
+				discarding = false;
+				if(complete) {
+					frames++;
+					return length;
+				}
+			} else if(inFrame) {
+				if(length == frame.length) {
+					oversized++;
+					inFrame = false;
+					discarding = true;
+				} else {
+					frame[length++] = b;
+				}
+			} else if(!discarding) {
+				skippedBytes++;
+			}
+		}
+	}
+
+	/**
+	 * Reads the next telegram as text.
+	 *
+	 * @param timeoutMillis longest time to wait, 0 for no limit
+	 * @return the telegram without framing, null on timeout
+	 * @throws IOException if the stream ended or failed
+	 */
+	public String readString(final long timeoutMillis) throws IOException {
+		final int n = read(timeoutMillis);
+		if(n < 0) return null;
+		return new String(frame, 0, n, StandardCharsets.US_ASCII);
+	}
+
+	private int timedOut() {
+		timeouts++;
+		if(inFrame || discarding) resyncs++;
+		inFrame = false;
+		discarding = false;
+		return -1;
+	}
+
+	/**
+	 * Returns the buffer holding the last telegram.  It is overwritten by the
+	 * next read.
+	 * @return frame buffer
+	 */
+	public byte[] getFrame() {
+		return frame;
+	}
+
+	/** @return number of complete telegrams read */
+	public long getFrames() {
+		return frames;
+	}
+
+	/** @return number of bytes skipped outside of telegrams */
+	public long getSkippedBytes() {
+		return skippedBytes;
+	}
+
+	/** @return number of telegrams dropped because they were cut short */
+	public long getResyncs() {
+		return resyncs;
+	}
+
+	/** @return number of telegrams dropped for exceeding the size limit */
+	public long getOversized() {
+		return oversized;
+	}
+
+	/** @return number of reads that hit their deadline */
+	public long getTimeouts() {
+		return timeouts;
+	}
+}
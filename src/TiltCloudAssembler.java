@@ -0,0 +1,218 @@
+package lidar;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Builds 3D point clouds from an LMS111 nodding on a tilt unit.
+ *
+ * Each scan is taken at the tilt angle read from an encoder reported with the
+ * scan.  Its points are rotated about the tilt axis and written into a
+ * direct (off-heap) float buffer as x, y, z triples in mm: x forward, y left
+ * and z up in the frame of the tilt unit.  A voxel grid thins the cloud as
+ * it grows: a point is only kept if its voxel is still empty, so no pass
+ * over the finished cloud is needed.
+ *
+ * A sweep ends when the tilt reverses direction.  The filled buffer is then
+ * handed to the listener right away and the assembler continues with a
+ * second buffer, so the listener may read the sweep until the following
+ * sweep completes.
+ */
+public class TiltCloudAssembler {
+	/**
+	 * Receives completed sweeps.
+	 */
+	public interface SweepListener {
+		/**
+		 * Called on the thread that added the last scan of the sweep.
+		 *
+		 * @param points x, y, z triples in mm, positioned at 0 with the limit
+		 * 			at the end of the cloud; valid until the next sweep completes
+		 * @param count number of points
+		 */
+		void sweepCompleted(FloatBuffer points, int count);
+	}
+
+	private static final int EMPTY = 0;
+
+	private final int encoder;
+	private final long zeroTicks;
+	private final double radiansPerTick;
+	private final float axisOffset;
+	private final float voxelSize;
+	private final int capacity;
+	private final SweepListener listener;
+
+	private BeamGeometry geometry;
+
+	/* two clouds, one being filled and one handed out */
+	private final FloatBuffer[] clouds = new FloatBuffer[2];
+	private int current;
+	private int points;
+	private long dropped;
+
+	/* voxel set, open addressing; a slot is used if its stamp is this sweep's */
+	private final long[] voxelKeys;
+	private final int[] voxelStamps;
+	private final int voxelMask;
+	private int stamp = 1;
+
+	/* sweep detection */
+	private long lastTicks = -1;
+	private int direction;
+	private long sweeps;
+
+	/**
+	 * Creates an assembler.
+	 *
+	 * @param encoder index of the encoder reporting the tilt
+	 * @param zeroTicks encoder position at which the scan plane is level
+	 * @param degreesPerTick tilt per encoder tick; positive tilt points the
+	 * 			scan plane downwards
+	 * @param axisOffset height of the sensor's optical centre above the tilt
+	 * 			axis in mm
+	 * @param voxelSize edge length of the voxels in mm, 0 to keep all points
+	 * @param capacity most points per sweep
+	 * @param listener receives completed sweeps
+	 */
+	public TiltCloudAssembler(int encoder, long zeroTicks, double degreesPerTick,
+			double axisOffset, double voxelSize, int capacity, SweepListener listener) {
+		if(capacity <= 0 || voxelSize < 0) throw new IllegalArgumentException();
+		this.encoder = encoder;
+		this.zeroTicks = zeroTicks;
+		this.radiansPerTick = Math.toRadians(degreesPerTick);
+		this.axisOffset = (float) axisOffset;
+		this.voxelSize = (float) voxelSize;
+		this.capacity = capacity;
+		this.listener = listener;
+
+		for(int i = 0; i < clouds.length; i++)
+			clouds[i] = ByteBuffer.allocateDirect(capacity * 3 * 4)
+					.order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+		int slots = Integer.highestOneBit(capacity) * 4;
+		voxelKeys = new long[slots];
+		voxelStamps = new int[slots];
+		voxelMask = slots - 1;
+	}
+
+	/**
+	 * Adds a scan at the tilt reported by its encoder.
+	 *
+	 * @param scan the scan, with encoder output enabled
+	 */
+	public void add(ScanData scan) {
+		if(scan.getEncoderCount() <= encoder)
+			throw new IllegalArgumentException("scan has no encoder " + encoder);
+		final long ticks = scan.getEncoderPosition(encoder);
+
+		if(lastTicks >= 0) {
+			/* encoder positions are 32 bit and wrap */
+			final int delta = (int) (ticks - lastTicks);
+			final int dir = delta > 0 ? 1 : delta < 0 ? -1 : 0;
+			if(dir != 0) {
+				if(direction != 0 && dir != direction) completeSweep();
+				direction = dir;
+			}
+		}
+		lastTicks = ticks;
+
+		add(scan, (int) (ticks - zeroTicks) * radiansPerTick);
+	}
+
+	/**
+	 * Adds a scan at a given tilt.  Sweeps are not detected here; call
+	 * {@link #completeSweep()} when one ends.
+	 *
+	 * @param scan the scan
+	 * @param tilt tilt in radians, positive points the scan plane downwards
+	 */
+	public void add(ScanData scan, double tilt) {
+		if(geometry == null || !geometry.matches(scan)) geometry = BeamGeometry.of(scan);
+
+		final float ct = (float) Math.cos(tilt), st = (float) Math.sin(tilt);
+		/* the optical centre after tilting */
+		final float ox = st * axisOffset, oz = ct * axisOffset;
+		final int[] dist = scan.getDIST1();
+		final int beams = Math.min(dist.length, geometry.getCount());
+		final FloatBuffer cloud = clouds[current];
+
+		for(int i = 0; i < beams; i++) {
+			final int d = dist[i];
+			if(d <= 0) continue;
+			final float px = d * geometry.cos(i);
+			final float y = d * geometry.sin(i);
+			/* rotate the scan plane about the y axis */
+			final float x = ox + ct * px;
+			final float z = oz - st * px;
+
+			if(voxelSize > 0 && !claimVoxel(x, y, z)) continue;
+			if(points >= capacity) {
+				dropped++;
+				continue;
+			}
+			int p = points * 3;
+			cloud.put(p, x);
+			cloud.put(p + 1, y);
+			cloud.put(p + 2, z);
+			points++;
+		}
+	}
+
+	/* true if the voxel was empty in this sweep and is now taken */
+	private boolean claimVoxel(float x, float y, float z) {
+		final long vx = (long) Math.floor(x / voxelSize) & 0x1FFFFF;
+		final long vy = (long) Math.floor(y / voxelSize) & 0x1FFFFF;
+		final long vz = (long) Math.floor(z / voxelSize) & 0x1FFFFF;
+		final long key = (vx << 42) | (vy << 21) | vz;
+
+		int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & voxelMask;
+		while(voxelStamps[slot] == stamp) {
+			if(voxelKeys[slot] == key) return false;
+			slot = (slot + 1) & voxelMask;
+		}
+		if(points >= capacity) return true;
+		voxelStamps[slot] = stamp;
+		voxelKeys[slot] = key;
+		return true;
+	}
+
+	/**
+	 * Ends the current sweep and hands it to the listener, even if the tilt
+	 * has not reversed.
+	 */
+	public void completeSweep() {
+		final FloatBuffer cloud = clouds[current];
+		final int count = points;
+		sweeps++;
+
+		current ^= 1;
+		points = 0;
+		if(++stamp == EMPTY) {
+			java.util.Arrays.fill(voxelStamps, EMPTY);
+			stamp = 1;
+		}
+
+		if(listener != null) {
+			FloatBuffer view = cloud.duplicate();
+			view.position(0).limit(count * 3);
+			listener.sweepCompleted(view, count);
+		}
+	}
+
+	/** @return points in the sweep being assembled */
+	public int getPointCount() {
+		return points;
+	}
+
+	/** @return completed sweeps */
+	public long getSweepCount() {
+		return sweeps;
+	}
+
+	/** @return points dropped because a sweep was full */
+	public long getDroppedCount() {
+		return dropped;
+	}
+}
@@ -0,0 +1,78 @@
+package tools;
+
+import java.util.Random;
+
+import lidar.ClockSync;
+
+/**
+ * Checks {@link ClockSync} against a simulated device clock.
+ *
+ * The simulated unit sends a telegram every 20 ms with a random transfer
+ * delay.  Each case runs for a while, then the unit may restart, and the
+ * error of converting the current device time back into host time is
+ * compared with a limit.  The cases cover a restart early and late in the
+ * unit's uptime, the late one beyond half the 32 bit wrap where a
+ * comparison of absolute device times no longer sees it, and a wrap of the
+ * device clock without a restart.  Exits with status 1 if any case fails.
+ *
+ * Usage: ClockSyncCheck
+ */
+public class ClockSyncCheck {
+	private static final long PERIOD_NANOS = 20000000L;
+	private static final long WRAP = 1L << 32;
+	/* largest acceptable conversion error */
+	private static final long LIMIT_NANOS = 2000000L;
+
+	public static void main(String[] args) {
+		boolean ok = check("restart after 5 minutes", 300L * 1000000, true)
+				& check("restart after 40 minutes", 2400L * 1000000, true)
+				& check("restart after 70 minutes", 4200L * 1000000, true)
+				& check("wrap without restart", WRAP - 5L * 1000000, false);
+		System.out.println(ok ? "ok" : "clock model wrong");
+		if(!ok) System.exit(1);
+	}
+
+	/*
+	 * uptime is the device time of the first telegram in us; with restart the
+	 * unit comes back after 5 s with its clock at 0 and a different drift
+	 */
+	private static boolean check(String name, long uptime, boolean restart) {
+		Random random = new Random(name.hashCode());
+		ClockSync clock = new ClockSync();
+		long host = 1000000000000L;
+		/* host time at device time 0, and host ns per device us */
+		long boot = host - uptime * 1000;
+		double rate = 1000.02;
+
+		for(int i = 0; i < 1000; i++) {
+			host += PERIOD_NANOS;
+			sample(clock, random, host, boot, rate);
+		}
+		if(restart) {
+			host += 5000000000L;
+			boot = host - 3000000000L;
+			rate = 999.97;
+		}
+		/* 2 s, well within the window, so stale samples would still count */
+		for(int i = 0; i < 100; i++) {
+			host += PERIOD_NANOS;
+			sample(clock, random, host, boot, rate);
+		}
+
+		/* a scan acquired 10 ms ago */
+		long acquired = host - 10000000L;
+		long device = Math.round((acquired - boot) / rate) & (WRAP - 1);
+		long error = clock.toHost(device) - acquired;
+		boolean ok = Math.abs(error) <= LIMIT_NANOS;
+		System.out.println(name + ": error " + error / 1000 + " us, slope "
+				+ String.format("%.3f", clock.getSlope()) + (ok ? "" : "  FAILED"));
+		return ok;
+	}
+
+	private static void sample(ClockSync clock, Random random, long sent, long boot,
+			double rate) {
+		long device = Math.round((sent - boot) / rate) & (WRAP - 1);
+		long delay = 200000 + (long) (random.nextDouble() * random.nextDouble() * 3000000);
+		clock.addSample(device, sent + delay);
+	}
+}
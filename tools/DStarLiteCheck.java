@@ -0,0 +1,143 @@
+package tools;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import lidar.DStarLitePlanner;
+import lidar.OccupancyGrid;
+
+/**
+ * Checks the incremental repair of {@link DStarLitePlanner} against a plain
+ * Dijkstra search on the same inflated grid.
+ *
+ * Each trial plans on a random grid, then repeatedly changes random cells,
+ * sometimes moves the start, replans and compares the path cost with the
+ * Dijkstra result and with a planner built from scratch on the same grid.
+ * Prints the first mismatches and exits with status 1 if there were any.
+ *
+ * Usage: DStarLiteCheck [trials] [seed]
+ */
+public class DStarLiteCheck {
+	private static final int[] DX = { 1, 1, 0, -1, -1, -1, 0, 1 };
+	private static final int[] DY = { 0, 1, 1, 1, 0, -1, -1, -1 };
+	private static final double RESOLUTION = 50;
+
+	public static void main(String[] args) {
+		int trials = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		Random random = new Random(seed);
+		int failures = 0, checks = 0;
+
+		/* block (4, 0) and (3, 4) on an empty 8x8 grid, the case that used to fail */
+		OccupancyGrid grid = emptyGrid(8, 8);
+		DStarLitePlanner planner = new DStarLitePlanner(grid, 0);
+		planner.setStart(x(0), x(0));
+		planner.setGoal(x(7), x(7));
+		planner.plan();
+		planner.setCell(4, 0, OccupancyGrid.OCCUPIED);
+		planner.setCell(3, 4, OccupancyGrid.OCCUPIED);
+		planner.plan();
+		checks++;
+		if(!check(planner, 0, 0, 0, 7, 7, "8x8")) failures++;
+
+		for(int t = 0; t < trials; t++) {
+			int w = 6 + random.nextInt(30), h = 6 + random.nextInt(30);
+			grid = emptyGrid(w, h);
+			for(int i = 0; i < w * h / 8; i++)
+				grid.set(random.nextInt(w), random.nextInt(h), OccupancyGrid.OCCUPIED);
+			double radius = random.nextInt(3) * RESOLUTION;
+			planner = new DStarLitePlanner(grid, radius);
+			int sx = random.nextInt(w), sy = random.nextInt(h);
+			int gx = random.nextInt(w), gy = random.nextInt(h);
+			planner.setStart(x(sx), x(sy));
+			planner.setGoal(x(gx), x(gy));
+			planner.plan();
+
+			for(int step = 0; step < 10; step++) {
+				int changes = 1 + random.nextInt(4);
+				for(int c = 0; c < changes; c++)
+					planner.setCell(random.nextInt(w), random.nextInt(h),
+							random.nextBoolean() ? OccupancyGrid.OCCUPIED : OccupancyGrid.FREE);
+				if(random.nextInt(3) == 0) {
+					sx = Math.max(0, Math.min(w - 1, sx + random.nextInt(3) - 1));
+					sy = Math.max(0, Math.min(h - 1, sy + random.nextInt(3) - 1));
+					planner.setStart(x(sx), x(sy));
+				}
+				planner.plan();
+				checks++;
+				if(!check(planner, radius, sx, sy, gx, gy, "trial " + t + " step " + step)
+						&& ++failures > 20)
+					break;
+			}
+			if(failures > 20) break;
+		}
+
+		System.out.println(checks + " plans checked, " + failures + " wrong");
+		if(failures > 0) System.exit(1);
+	}
+
+	private static boolean check(DStarLitePlanner planner, double radius,
+			int sx, int sy, int gx, int gy, String name) {
+		OccupancyGrid grid = planner.getGrid();
+		double expected = dijkstra(planner, sx, sy, gx, gy);
+		double incremental = planner.getPathCost();
+
+		OccupancyGrid copy = emptyGrid(grid.getWidth(), grid.getHeight());
+		System.arraycopy(grid.getCells(), 0, copy.getCells(), 0, grid.getCells().length);
+		DStarLitePlanner fresh = new DStarLitePlanner(copy, radius);
+		fresh.setStart(x(sx), x(sy));
+		fresh.setGoal(x(gx), x(gy));
+		fresh.plan();
+		double scratch = fresh.getPathCost();
+
+		if(incremental == expected && scratch == expected) return true;
+		System.out.println(name + ": incremental " + incremental + " from scratch " + scratch
+				+ " dijkstra " + expected + " (mm)");
+		return false;
+	}
+
+	/* path cost in mm from start to goal with the planner's step costs and blocked cells */
+	private static double dijkstra(DStarLitePlanner planner, int sx, int sy, int gx, int gy) {
+		OccupancyGrid grid = planner.getGrid();
+		int w = grid.getWidth(), h = grid.getHeight();
+		int[] dist = new int[w * h];
+		boolean[] done = new boolean[w * h];
+		Arrays.fill(dist, Integer.MAX_VALUE);
+		dist[gy * w + gx] = 0;
+		while(true) {
+			int u = -1;
+			for(int i = 0; i < dist.length; i++)
+				if(!done[i] && dist[i] != Integer.MAX_VALUE && (u < 0 || dist[i] < dist[u])) u = i;
+			if(u < 0) break;
+			done[u] = true;
+			int cx = u % w, cy = u / w;
+			if(planner.isBlocked(cx, cy)) continue;
+			for(int d = 0; d < 8; d++) {
+				int x = cx + DX[d], y = cy + DY[d];
+				if(planner.isBlocked(x, y)) continue;
+				int cost = DStarLitePlanner.STRAIGHT;
+				if((d & 1) != 0) {
+					if(planner.isBlocked(x, cy) || planner.isBlocked(cx, y)) continue;
+					cost = DStarLitePlanner.DIAGONAL;
+				}
+				int v = y * w + x;
+				if(dist[u] + cost < dist[v]) dist[v] = dist[u] + cost;
+			}
+		}
+		if(sx == gx && sy == gy) return 0;
+		int d = dist[sy * w + sx];
+		if(d == Integer.MAX_VALUE || planner.isBlocked(sx, sy)) return Double.POSITIVE_INFINITY;
+		return (double) d * RESOLUTION / DStarLitePlanner.STRAIGHT;
+	}
+
+	private static OccupancyGrid emptyGrid(int w, int h) {
+		OccupancyGrid grid = new OccupancyGrid(w, h, RESOLUTION, 0, 0);
+		grid.fill(OccupancyGrid.FREE);
+		return grid;
+	}
+
+	/* centre of a cell in mm */
+	private static double x(int cell) {
+		return (cell + 0.5) * RESOLUTION;
+	}
+}
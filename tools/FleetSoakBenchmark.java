@@ -0,0 +1,259 @@
+package tools;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+import lidar.ClockSync;
+import lidar.LMS111;
+import lidar.ScanData;
+import lidar.ScanListener;
+import lidar.SensorRuntime;
+
+/**
+ * Finds where the LMS111 driver saturates as the number of sensors grows.
+ *
+ * For N = 1, 2, 4, ... up to the requested maximum it starts N simulated
+ * units on the loopback interface, drives each with a real {@link LMS111}
+ * on a {@link SensorRuntime} and measures for a fixed time:
+ * <ul>
+ * <li>latency from the acquisition of a scan, and from the moment the
+ * simulator sent it, to the moment the listener is called, after parsing
+ * and dispatch, as percentiles.  Both start times are the simulator's own
+ * clock, which runs in this process, so the figures are exact rather than
+ * estimated by {@link ClockSync}.</li>
+ * <li>scans delivered per second, in total and per CPU second used by the
+ * process, which includes the simulators</li>
+ * <li>garbage collections and the time spent in them</li>
+ * <li>telegrams lost and scans missed, from the counters in the telegrams</li>
+ * </ul>
+ * A summary line per step goes to standard error and the results of all
+ * steps are written as one JSON document to standard output or a file, so
+ * runs of different versions can be compared by a script.
+ *
+ * Each simulator serves {@link #SENSORS_PER_SIMULATOR} units on one thread;
+ * larger fleets get several simulators so they do not become the bottleneck
+ * before the driver does.
+ *
+ * Usage: FleetSoakBenchmark [max sensors] [scanFreq in 1/100 Hz] [seconds]
+ * 			[virtual|platform] [output file]
+ */
+public class FleetSoakBenchmark {
+	public static final int SENSORS_PER_SIMULATOR = 64;
+	private static final int WARM_UP_MILLIS = 2000;
+
+	/* latency histogram in microseconds: exact below 64, 32 steps per octave above */
+	private static final int EXACT = 64;
+	private static final int STEPS = 32;
+	private static final int BUCKETS = EXACT + 40 * STEPS;
+
+	public static void main(String[] args) throws Exception {
+		int maxSensors = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		int scanFreq = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		boolean virtual = args.length > 3 && args[3].equals("virtual");
+		if(scanFreq != 2500 && scanFreq != 5000)
+			throw new IllegalArgumentException("scanFreq must be 2500 or 5000");
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\n  \"java\": \"").append(System.getProperty("java.version"))
+			.append("\",\n  \"processors\": ").append(Runtime.getRuntime().availableProcessors())
+			.append(",\n  \"scanFreq\": ").append(scanFreq / 100.0)
+			.append(",\n  \"seconds\": ").append(seconds)
+			.append(",\n  \"threads\": \"")
+			.append(virtual && SensorRuntime.isVirtualThreadSupported() ? "virtual" : "platform")
+			.append("\",\n  \"steps\": [");
+
+		System.err.println("sensors  scans/s  per cpu s   p50 ms   p99 ms  p999 ms   max ms"
+				+ "  send p99  gc   gc ms  lost  missed");
+		for(int n = 1; ; n = Math.min(n * 2, maxSensors)) {
+			if(n > 1) json.append(',');
+			json.append("\n    ").append(run(n, scanFreq, seconds, virtual));
+			if(n == maxSensors) break;
+		}
+		json.append("\n  ]\n}\n");
+
+		if(args.length > 4) {
+			Writer out = new OutputStreamWriter(new FileOutputStream(args[4]), StandardCharsets.UTF_8);
+			out.write(json.toString());
+			out.close();
+		} else {
+			System.out.print(json);
+		}
+	}
+
+	private static String run(int sensors, int scanFreq, int seconds, boolean virtual)
+			throws Exception {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+
+		SimulatedLMS111[] sims = new SimulatedLMS111[
+				(sensors + SENSORS_PER_SIMULATOR - 1) / SENSORS_PER_SIMULATOR];
+		for(int i = 0; i < sims.length; i++) {
+			sims[i] = new SimulatedLMS111(Math.min(SENSORS_PER_SIMULATOR,
+					sensors - i * SENSORS_PER_SIMULATOR), scanFreq, 5000);
+			sims[i].start();
+		}
+
+		SensorRuntime runtime = new SensorRuntime(virtual);
+		LMS111[] lms = new LMS111[sensors];
+		Recorder[] recorders = new Recorder[sensors];
+		for(int i = 0; i < sensors; i++) {
+			SimulatedLMS111 sim = sims[i / SENSORS_PER_SIMULATOR];
+			lms[i] = new LMS111("127.0.0.1", sim.getPort(i % SENSORS_PER_SIMULATOR));
+			if(!lms[i].connect()) throw new IllegalStateException("connect failed");
+			lms[i].startMeasuring();
+			recorders[i] = new Recorder(sim);
+			runtime.start(lms[i], recorders[i], 0);
+		}
+
+		/* let the clock models settle and the JIT warm up */
+		Thread.sleep(WARM_UP_MILLIS);
+
+		long[] lost = new long[sensors], missed = new long[sensors];
+		for(int i = 0; i < sensors; i++) {
+			ClockSync clock = lms[i].getClockSync();
+			lost[i] = clock.getLostTelegrams();
+			missed[i] = clock.getMissedScans();
+		}
+		long gcCount = 0, gcMillis = 0;
+		for(GarbageCollectorMXBean gc : collectors) {
+			gcCount -= Math.max(gc.getCollectionCount(), 0);
+			gcMillis -= Math.max(gc.getCollectionTime(), 0);
+		}
+		long cpu = -cpuTime(threads);
+		long start = System.nanoTime();
+		for(Recorder r : recorders) r.recording = true;
+
+		Thread.sleep(seconds * 1000L);
+
+		for(Recorder r : recorders) r.recording = false;
+		long wall = System.nanoTime() - start;
+		cpu += cpuTime(threads);
+		for(GarbageCollectorMXBean gc : collectors) {
+			gcCount += Math.max(gc.getCollectionCount(), 0);
+			gcMillis += Math.max(gc.getCollectionTime(), 0);
+		}
+		long lostTotal = 0, missedTotal = 0;
+		for(int i = 0; i < sensors; i++) {
+			ClockSync clock = lms[i].getClockSync();
+			lostTotal += clock.getLostTelegrams() - lost[i];
+			missedTotal += clock.getMissedScans() - missed[i];
+		}
+
+		runtime.close();
+		for(SimulatedLMS111 sim : sims) sim.stop();
+
+		/* the recorders are no longer written once their readers have ended */
+		long[] histogram = new long[BUCKETS], sent = new long[BUCKETS];
+		long scans = 0, max = 0, sentMax = 0;
+		for(Recorder r : recorders) {
+			for(int b = 0; b < BUCKETS; b++) {
+				histogram[b] += r.histogram[b];
+				sent[b] += r.sent[b];
+			}
+			scans += r.scans;
+			max = Math.max(max, r.max);
+			sentMax = Math.max(sentMax, r.sentMax);
+		}
+
+		double rate = scans * 1e9 / wall;
+		double perCpu = cpu > 0 ? scans * 1e9 / cpu : 0;
+		double expected = sensors * (scanFreq / 100.0) * wall / 1e9;
+		long p50 = percentile(histogram, 0.5), p99 = percentile(histogram, 0.99),
+				p999 = percentile(histogram, 0.999);
+
+		System.err.println(String.format("%7d %8.0f %10.0f %8.2f %8.2f %8.2f %8.2f %9.2f %4d %7d %5d %7d",
+				sensors, rate, perCpu, p50 / 1000.0, p99 / 1000.0, p999 / 1000.0, max / 1000.0,
+				percentile(sent, 0.99) / 1000.0, gcCount, gcMillis, lostTotal, missedTotal));
+
+		return String.format(Locale.ROOT, "{\"sensors\": %d, \"scans\": %d, "
+				+ "\"expectedScans\": %.0f, \"scansPerSecond\": %.1f, \"scansPerCpuSecond\": %.1f, "
+				+ "\"cpuCores\": %.3f, \"latencyMicros\": %s, \"sendLatencyMicros\": %s, "
+				+ "\"gc\": {\"collections\": %d, \"millis\": %d}, "
+				+ "\"lostTelegrams\": %d, \"missedScans\": %d}",
+				sensors, scans, expected, rate, perCpu, (double) cpu / wall,
+				percentiles(histogram, max), percentiles(sent, sentMax),
+				gcCount, gcMillis, lostTotal, missedTotal);
+	}
+
+	private static String percentiles(long[] histogram, long max) {
+		return String.format(Locale.ROOT,
+				"{\"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}",
+				percentile(histogram, 0.5), percentile(histogram, 0.9),
+				percentile(histogram, 0.99), percentile(histogram, 0.999), max);
+	}
+
+	/* CPU time of all live threads in ns */
+	private static long cpuTime(ThreadMXBean threads) {
+		if(!threads.isThreadCpuTimeSupported()) return 0;
+		long sum = 0;
+		for(long id : threads.getAllThreadIds()) {
+			long t = threads.getThreadCpuTime(id);
+			if(t > 0) sum += t;
+		}
+		return sum;
+	}
+
+	private static int bucket(long micros) {
+		if(micros < EXACT) return (int) Math.max(micros, 0);
+		int octave = 63 - Long.numberOfLeadingZeros(micros);
+		int shift = octave - 5;
+		int b = EXACT + (octave - 6) * STEPS + (int) (micros >>> shift) - STEPS;
+		return Math.min(b, BUCKETS - 1);
+	}
+
+	/* lower bound of a bucket in microseconds */
+	private static long value(int bucket) {
+		if(bucket < EXACT) return bucket;
+		int octave = (bucket - EXACT) / STEPS + 6;
+		return (long) ((bucket - EXACT) % STEPS + STEPS) << (octave - 5);
+	}
+
+	private static long percentile(long[] histogram, double p) {
+		long total = 0;
+		for(long c : histogram) total += c;
+		if(total == 0) return 0;
+		long rank = (long) Math.ceil(p * total), seen = 0;
+		for(int b = 0; b < histogram.length; b++) {
+			seen += histogram[b];
+			if(seen >= rank) return value(b);
+		}
+		return value(histogram.length - 1);
+	}
+
+	/* latencies of one sensor; written only by that sensor's reader */
+	private static class Recorder implements ScanListener {
+		final SimulatedLMS111 sim;
+		/* from acquisition and from sending, to the listener */
+		final long[] histogram = new long[BUCKETS];
+		final long[] sent = new long[BUCKETS];
+		volatile boolean recording;
+		long scans;
+		long max;
+		long sentMax;
+
+		Recorder(SimulatedLMS111 sim) {
+			this.sim = sim;
+		}
+
+		public void scanReceived(ScanData scan) {
+			final long now = System.nanoTime();
+			if(!recording || scan.getScanStartTime() < 0 || scan.getTransmissionTime() < 0)
+				return;
+			long micros = (now - sim.toHost(scan.getScanStartTime())) / 1000;
+			histogram[bucket(micros)]++;
+			if(micros > max) max = micros;
+			micros = (now - sim.toHost(scan.getTransmissionTime())) / 1000;
+			sent[bucket(micros)]++;
+			if(micros > sentMax) sentMax = micros;
+			scans++;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package tools;
+
+import lidar.LandmarkMap;
+import lidar.Position;
+import lidar.ReflectorDetector;
+import lidar.ScanData;
+
+/**
+ * Checks that {@link ReflectorDetector#associate} gives a landmark to the
+ * nearest of several detections within its gate, whatever their order in
+ * the scan.
+ *
+ * Two reflectors stand 3 m ahead of the sensor, one on the landmark and one
+ * about 100 mm beside it, both within the gate.  The scan is built once with
+ * the displaced reflector first and once with it last.  Exits with status 1
+ * if the wrong detection is matched.
+ *
+ * Usage: ReflectorCheck
+ */
+public class ReflectorCheck {
+	private static final int BEAMS = 541;
+	/* beam pointing straight ahead in the default layout, 0.5 degrees from -45 */
+	private static final int AHEAD = 270;
+	private static final int RANGE = 3000;
+
+	public static void main(String[] args) {
+		LandmarkMap map = new LandmarkMap(new double[] { RANGE }, new double[] { 0 }, 500);
+		boolean ok = check(map, AHEAD - 4, AHEAD, "displaced reflector first")
+				& check(map, AHEAD, AHEAD + 4, "displaced reflector last");
+		System.out.println(ok ? "ok" : "wrong detection matched");
+		if(!ok) System.exit(1);
+	}
+
+	/* places single beam reflectors at two beams; the one at AHEAD lies on the landmark */
+	private static boolean check(LandmarkMap map, int first, int second, String name) {
+		int[] dist = new int[BEAMS], rssi = new int[BEAMS];
+		for(int i = 0; i < BEAMS; i++) {
+			dist[i] = 8000;
+			rssi[i] = 50;
+		}
+		dist[first] = dist[second] = RANGE;
+		rssi[first] = rssi[second] = 250;
+
+		ReflectorDetector detector = new ReflectorDetector(200, 1, 5, 100, 8, false);
+		int found = detector.detect(new ScanData(dist, rssi));
+		int matched = detector.associate(map, new Position(0, 0, 0), 300);
+
+		int nearest = -1;
+		for(int i = 0; i < found; i++)
+			if(nearest < 0 || Math.abs(detector.getY(i)) < Math.abs(detector.getY(nearest)))
+				nearest = i;
+		boolean ok = found == 2 && matched == 1 && detector.getLandmark(nearest) == 0;
+		System.out.println(name + ": " + found + " found, " + matched + " matched, nearest "
+				+ (detector.getLandmark(nearest) == 0 ? "kept" : "lost") + " the landmark");
+		return ok;
+	}
+}
@@ -0,0 +1,78 @@
+package tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import lidar.LMS111;
+import lidar.ScanData;
+import lidar.ScanLogReprocessor;
+
+/**
+ * Measures how {@link ScanLogReprocessor} scales with the number of cores.
+ *
+ * Records scans from a {@link SimulatedLMS111}, writes them repeatedly into a
+ * raw telegram log of the requested size and reprocesses the log with 1, 2,
+ * 4, ... worker threads up to the number of available processors.
+ *
+ * Usage: ScanLogBenchmark [log size in MB]
+ */
+public class ScanLogBenchmark {
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+
+		SimulatedLMS111 sim = new SimulatedLMS111(1, 5000, 5000);
+		sim.start();
+		LMS111 lms = new LMS111("127.0.0.1", sim.getPort(0));
+		if(!lms.connect()) throw new IllegalStateException("connect failed");
+		String[] recorded = new String[50];
+		for(int i = 0; i < recorded.length; i++) recorded[i] = lms.getRawScan();
+		lms.disconnect();
+		sim.stop();
+
+		File log = File.createTempFile("lms111", ".log");
+		log.deleteOnExit();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(log), 1 << 16);
+		long written = 0;
+		for(int i = 0; written < megabytes * 1024L * 1024L; i++) {
+			byte[] telegram = recorded[i % recorded.length].getBytes(StandardCharsets.US_ASCII);
+			out.write(0x02);
+			out.write(telegram);
+			out.write(0x03);
+			written += telegram.length + 2;
+		}
+		out.close();
+
+		ScanLogReprocessor.ScanProcessor<Integer> nearest =
+				new ScanLogReprocessor.ScanProcessor<Integer>() {
+			public Integer process(ScanData scan) {
+				int min = Integer.MAX_VALUE;
+				for(int d : scan.getDIST1()) if(d > 0 && d < min) min = d;
+				return Integer.valueOf(min);
+			}
+		};
+
+		System.out.println("log: " + (log.length() >> 20) + " MB");
+		System.out.println("threads  scans/s  speedup");
+		double base = 0;
+		int cores = Runtime.getRuntime().availableProcessors();
+		for(int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			ScanLogReprocessor reprocessor = new ScanLogReprocessor(pool,
+					ScanLogReprocessor.DEFAULT_CHUNK_SIZE);
+			reprocessor.process(log, nearest); /* warm up */
+			long start = System.nanoTime();
+			List<Integer> results = reprocessor.process(log, nearest);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			double rate = results.size() / seconds;
+			if(base == 0) base = rate;
+			System.out.println(String.format("%7d %8.0f %8.2f", threads, rate, rate / base));
+			pool.shutdown();
+			if(threads == cores) break;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lidar.LMS111;
+import lidar.ScanData;
+import lidar.ScanListener;
+import lidar.SensorRuntime;
+
+/**
+ * Compares the thread and memory footprint of {@link SensorRuntime} on
+ * platform threads and on virtual threads.
+ *
+ * For each model it starts a set of {@link SimulatedLMS111} units, connects
+ * one {@link LMS111} per unit, runs reader, command and health tasks for all
+ * of them and reports the number of platform threads, the heap in use and
+ * the scan throughput.  Virtual threads need JDK 21; on older JDKs only the
+ * platform model is measured.
+ *
+ * Usage: SensorRuntimeBenchmark [sensors] [seconds]
+ */
+public class SensorRuntimeBenchmark {
+	public static void main(String[] args) throws Exception {
+		int sensors = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		System.out.println("sensors: " + sensors + ", duration: " + seconds + " s");
+		System.out.println("model     threads  heap(KB)  scans/s  health polls ok");
+		run(false, sensors, seconds);
+		if(SensorRuntime.isVirtualThreadSupported())
+			run(true, sensors, seconds);
+		else
+			System.out.println("virtual   n/a (requires JDK 21, running "
+					+ System.getProperty("java.version") + ")");
+	}
+
+	private static void run(boolean virtual, int sensors, int seconds) throws Exception {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+		SimulatedLMS111 sim = new SimulatedLMS111(sensors, 5000, 5000);
+		sim.start();
+
+		LMS111[] lms = new LMS111[sensors];
+		for(int i = 0; i < sensors; i++) {
+			lms[i] = new LMS111("127.0.0.1", sim.getPort(i));
+			if(!lms[i].connect()) throw new IllegalStateException("connect failed");
+			lms[i].startMeasuring();
+		}
+
+		System.gc();
+		final int threadsBefore = threads.getThreadCount();
+		final long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+		final AtomicLong scans = new AtomicLong();
+		ScanListener counter = new ScanListener() {
+			public void scanReceived(ScanData scan) {
+				scans.incrementAndGet();
+			}
+		};
+
+		SensorRuntime runtime = new SensorRuntime(virtual);
+		SensorRuntime.Sensor[] handles = new SensorRuntime.Sensor[sensors];
+		for(int i = 0; i < sensors; i++)
+			handles[i] = runtime.start(lms[i], counter, 500);
+
+		/* let everything settle before measuring */
+		Thread.sleep(1000);
+		scans.set(0);
+		Thread.sleep(seconds * 1000L);
+		long delivered = scans.get();
+
+		int threadCount = threads.getThreadCount() - threadsBefore;
+		System.gc();
+		long heap = (memory.getHeapMemoryUsage().getUsed() - heapBefore) / 1024;
+		int healthy = 0;
+		for(int i = 0; i < sensors; i++)
+			if(handles[i].getStatus() != null) healthy++;
+
+		System.out.println(String.format("%-9s %7d %9d %8d %6d/%d",
+				virtual ? "virtual" : "platform", threadCount, heap,
+				delivered / seconds, healthy, sensors));
+
+		runtime.close();
+		sim.stop();
+	}
+}
@@ -0,0 +1,381 @@
+package tools;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Simulates any number of LMS111 units on the loopback interface.
+ *
+ * Every simulated unit listens on its own port and answers the CoLa A
+ * commands used by {@link lidar.LMS111}.  Scans are produced at the
+ * configured frequency: a scan request is answered with the newest scan, or
+ * held back until the next scan is acquired if the client already has the
+ * newest one.  Telegram and scan counters as well as the device timestamps
+ * behave like those of a real unit.
+ *
+ * All units are served by a single selector thread, so the simulator adds
+ * one thread to the process no matter how many units it runs.
+ */
+public class SimulatedLMS111 implements Runnable {
+	private static final byte STX = 0x02;
+	private static final byte ETX = 0x03;
+
+	private final int sensors;
+	private final int scanFreq;
+	private final int angleRes;
+	private final long periodNanos;
+	private final long bootNanos = System.nanoTime();
+
+	private final Selector selector;
+	private final ServerSocketChannel[] servers;
+	private final String[] scanBodies;
+	private final ArrayDeque<Client> waiting = new ArrayDeque<Client>();
+
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * Opens the listening ports.
+	 *
+	 * @param sensors number of units to simulate
+	 * @param scanFreq scan frequency in 1/100 Hz, 2500 or 5000
+	 * @param angleRes angular resolution in 1/10,000 degrees, 2500 or 5000
+	 * @throws IOException if a port cannot be opened
+	 */
+	public SimulatedLMS111(int sensors, int scanFreq, int angleRes) throws IOException {
+		this.sensors = sensors;
+		this.scanFreq = scanFreq;
+		this.angleRes = angleRes;
+		this.periodNanos = 100L * 1000000000L / scanFreq;
+		this.selector = Selector.open();
+		this.servers = new ServerSocketChannel[sensors];
+		this.scanBodies = new String[sensors];
+
+		for(int i = 0; i < sensors; i++) {
+			servers[i] = ServerSocketChannel.open();
+			servers[i].bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			servers[i].configureBlocking(false);
+			servers[i].register(selector, SelectionKey.OP_ACCEPT, Integer.valueOf(i));
+			scanBodies[i] = buildBody(i, -450000, 2250000);
+		}
+	}
+
+	/**
+	 * Returns the port of a simulated unit.
+	 * @param sensor index of the unit
+	 * @return port on the loopback interface
+	 */
+	public int getPort(int sensor) {
+		return servers[sensor].socket().getLocalPort();
+	}
+
+	/**
+	 * Converts a device clock value of the simulated units into host time.
+	 * The units count microseconds since the simulator was created, on the
+	 * {@link System#nanoTime()} clock, so unlike the estimate of
+	 * {@link lidar.ClockSync} the conversion is exact.  Only valid in the
+	 * process running the simulator.
+	 *
+	 * @param deviceMicros device clock value from a telegram, 32 bit
+	 * @return host time on the System.nanoTime() clock
+	 */
+	public long toHost(long deviceMicros) {
+		long now = (System.nanoTime() - bootNanos) / 1000;
+		/* device values lie in the past; undo the 32 bit wrap */
+		long d = (now & ~0xFFFFFFFFL) | (deviceMicros & 0xFFFFFFFFL);
+		if(d > now) d -= 1L << 32;
+		return bootNanos + d * 1000;
+	}
+
+	public int getSensorCount() {
+		return sensors;
+	}
+
+	/**
+	 * Starts serving on a daemon thread.
+	 */
+	public synchronized void start() {
+		if(running) return;
+		running = true;
+		thread = new Thread(this, "SimulatedLMS111");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops serving and closes all ports and connections.
+	 */
+	public void stop() {
+		running = false;
+		selector.wakeup();
+		if(thread != null) {
+			try {
+				thread.join(1000);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			for(SelectionKey key : selector.keys()) key.channel().close();
+			selector.close();
+		} catch (final IOException e) {}
+	}
+
+	public void run() {
+		try {
+			while(running) {
+				long timeout = releaseDue();
+				selector.select(timeout);
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					try {
+						if(!key.isValid()) continue;
+						if(key.isAcceptable()) accept(key);
+						else {
+							if(key.isReadable()) read(key);
+							if(key.isValid() && key.isWritable()) write(key);
+						}
+					} catch (final IOException e) {
+						close(key);
+					}
+				}
+			}
+		} catch (final IOException e) {
+			if(running) e.printStackTrace();
+		}
+	}
+
+	/* answers held scan requests whose scan is now available, returns ms until the next one */
+	private long releaseDue() throws IOException {
+		long now = System.nanoTime();
+		long next = Long.MAX_VALUE;
+		int n = waiting.size();
+		for(int i = 0; i < n; i++) {
+			Client c = waiting.poll();
+			if(c.dueNanos <= now) {
+				if(c.key.isValid()) {
+					sendScan(c, now);
+					flush(c.key);
+				}
+			} else {
+				waiting.add(c);
+				next = Math.min(next, c.dueNanos);
+			}
+		}
+		if(next == Long.MAX_VALUE) return 0;
+		return Math.max(1, (next - now + 999999) / 1000000);
+	}
+
+	private void accept(SelectionKey key) throws IOException {
+		SocketChannel ch = ((ServerSocketChannel) key.channel()).accept();
+		if(ch == null) return;
+		ch.configureBlocking(false);
+		ch.socket().setTcpNoDelay(true);
+		Client c = new Client(((Integer) key.attachment()).intValue());
+		c.key = ch.register(selector, SelectionKey.OP_READ, c);
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		Client c = (Client) key.attachment();
+		ByteBuffer in = c.in;
+		if(((SocketChannel) key.channel()).read(in) < 0) {
+			close(key);
+			return;
+		}
+
+		in.flip();
+		int start = -1;
+		while(in.hasRemaining()) {
+			byte b = in.get();
+			if(b == STX) {
+				start = in.position();
+			} else if(b == ETX && start >= 0) {
+				String cmd = new String(in.array(), start, in.position() - 1 - start,
+						StandardCharsets.US_ASCII);
+				handle(c, cmd);
+				start = -1;
+			}
+		}
+		/* keep an incomplete telegram for the next read */
+		if(start >= 0) {
+			in.position(start - 1);
+			in.compact();
+		} else {
+			in.clear();
+		}
+		if(!in.hasRemaining()) close(key);
+		flush(key);
+	}
+
+	private void handle(Client c, String cmd) {
+		String[] parts = cmd.split(" ");
+		if(parts.length < 2) {
+			reply(c, "sFA 1");
+			return;
+		}
+		String type = parts[0], name = parts[1];
+
+		if(name.equals("LMDscandata") && type.equals("sRN")) {
+			long now = System.nanoTime();
+			long scan = (now - bootNanos) / periodNanos;
+			if(scan <= c.lastScan) {
+				c.dueNanos = bootNanos + (c.lastScan + 1) * periodNanos;
+				waiting.add(c);
+			} else {
+				sendScan(c, now);
+			}
+		} else if(name.equals("SetAccessMode")) {
+			reply(c, "sAN SetAccessMode 1");
+		} else if(name.equals("STlms")) {
+			reply(c, "sRA STlms 7 0 8 00:00:00 8 01.01.2000 0 0 0");
+		} else if(name.equals("LCMstate")) {
+			reply(c, "sRA LCMstate 0");
+		} else if(name.equals("LMPscancfg")) {
+			reply(c, "sRA LMPscancfg " + hex(scanFreq) + " 1 " + hex(angleRes)
+					+ " " + hex(-450000) + " " + hex(2250000));
+		} else if(name.equals("LMPoutputRange") && type.equals("sWN")) {
+			outputRange(c, parts);
+		} else if(type.equals("sWN")) {
+			reply(c, "sWA " + name);
+		} else if(type.equals("sMN")) {
+			reply(c, "sAN " + name + " 0");
+		} else {
+			reply(c, "sFA 1");
+		}
+	}
+
+	/* sWN LMPoutputRange 1 <resolution> <start> <stop>, decimal with sign */
+	private void outputRange(Client c, String[] parts) {
+		try {
+			int res = Integer.parseInt(parts[3].replace("+", ""));
+			int start = Integer.parseInt(parts[4].replace("+", ""));
+			int stop = Integer.parseInt(parts[5].replace("+", ""));
+			if(res != angleRes || start < -450000 || stop > 2250000 || start >= stop) {
+				reply(c, "sFA 1");
+				return;
+			}
+			c.body = buildBody(c.sensor, start, stop);
+			reply(c, "sWA LMPoutputRange");
+		} catch (final RuntimeException e) {
+			reply(c, "sFA 1");
+		}
+	}
+
+	private void sendScan(Client c, long now) {
+		long scan = (now - bootNanos) / periodNanos;
+		long acquired = scan * periodNanos / 1000;
+		long sent = (now - bootNanos) / 1000;
+		c.lastScan = scan;
+		c.telegrams++;
+
+		StringBuilder sb = new StringBuilder(64);
+		sb.append("sRA LMDscandata 1 1 ").append(hex(0x89A27F + c.sensor))
+			.append(" 0 0 ").append(hex((int) c.telegrams))
+			.append(' ').append(hex((int) scan))
+			.append(' ').append(hex((int) acquired))
+			.append(' ').append(hex((int) sent))
+			.append(" 0 0 0 0 0 ").append(hex(scanFreq))
+			.append(' ').append(hex(scanFreq / 100 * (2700000 / angleRes) / 100));
+		reply(c, sb.append(c.body != null ? c.body : scanBodies[c.sensor]).toString());
+	}
+
+	/* DIST1 and RSSI1 blocks of a sensor standing in a 10 m x 6 m room */
+	private String buildBody(int sensor, int start, int stop) {
+		int beams = (stop - start) / angleRes + 1;
+		StringBuilder dist = new StringBuilder(), rssi = new StringBuilder();
+		for(int i = 0; i < beams; i++) {
+			double a = Math.toRadians((start + (double) i * angleRes - 900000) / 10000.0);
+			double dx = Math.cos(a), dy = Math.sin(a);
+			double tx = dx > 0 ? 6000 / dx : dx < 0 ? -4000 / dx : Double.MAX_VALUE;
+			double ty = dy > 0 ? (3000 + sensor % 7 * 10) / dy
+					: dy < 0 ? -3000 / dy : Double.MAX_VALUE;
+			int range = (int) Math.min(tx, ty);
+			dist.append(' ').append(hex(range));
+			rssi.append(' ').append(hex(range > 5000 ? 80 : 160));
+		}
+		return " 0 1 DIST1 3F800000 00000000 " + hex(start) + " " + hex(angleRes)
+				+ " " + hex(beams) + dist
+				+ " 1 RSSI1 3F800000 00000000 " + hex(start) + " " + hex(angleRes)
+				+ " " + hex(beams) + rssi
+				+ " 0 0 0 0 0";
+	}
+
+	private static String hex(int value) {
+		return Integer.toHexString(value).toUpperCase();
+	}
+
+	private void reply(Client c, String message) {
+		byte[] body = message.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer buf = ByteBuffer.allocate(body.length + 2);
+		buf.put(STX).put(body).put(ETX).flip();
+		c.out.add(buf);
+	}
+
+	private void flush(SelectionKey key) throws IOException {
+		if(!key.isValid()) return;
+		write(key);
+	}
+
+	private void write(SelectionKey key) throws IOException {
+		Client c = (Client) key.attachment();
+		SocketChannel ch = (SocketChannel) key.channel();
+		while(!c.out.isEmpty()) {
+			ByteBuffer buf = c.out.peek();
+			ch.write(buf);
+			if(buf.hasRemaining()) break;
+			c.out.poll();
+		}
+		key.interestOps(c.out.isEmpty() ? SelectionKey.OP_READ
+				: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (final IOException e) {}
+	}
+
+	/* connection state */
+	private static class Client {
+		final int sensor;
+		final ByteBuffer in = ByteBuffer.allocate(4096);
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+		SelectionKey key;
+		long lastScan = -1;
+		long telegrams;
+		long dueNanos;
+		/* scan body for a limited output range, null for the full field */
+		String body;
+
+		Client(int sensor) {
+			this.sensor = sensor;
+		}
+	}
+
+	/**
+	 * Runs simulated units until the process is killed.
+	 * Usage: SimulatedLMS111 [sensors] [scanFreq]
+	 */
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+		int freq = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		SimulatedLMS111 sim = new SimulatedLMS111(n, freq, 5000);
+		for(int i = 0; i < n; i++)
+			System.out.println("LMS111 #" + i + " on port " + sim.getPort(i));
+		sim.start();
+		sim.thread.join();
+	}
+}